@@ -0,0 +1,39 @@
+package cross;
+
+import jdk.incubator.vector.*;
+
+/**
+ * PosteriorKernel with the Vector API (Java 16+).  Compiled by make only if
+ * javac has jdk.incubator.vector, and loaded by PosteriorKernel with
+ * -vectorKernels.  The sum is added up a lane at a time, so it can differ
+ * from the scalar one in the last bits.
+ */
+class VectorPosteriorKernel extends PosteriorKernel {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  double multiplyAndSum(double[] row, double[] probs, int n) {
+    int m = SPECIES.loopBound(n);
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int i = 0;
+    for(; i < m; i += SPECIES.length()) {
+      DoubleVector x = DoubleVector.fromArray(SPECIES, probs, i).mul(DoubleVector.fromArray(SPECIES, row, i));
+      x.intoArray(row, i);
+      sums = sums.add(x);
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for(; i < n; i++) {
+      row[i] = probs[i] * row[i];
+      sum += row[i];
+    }
+    return sum;
+  }
+
+  void divide(double[] row, int n, double sum) {
+    int m = SPECIES.loopBound(n);
+    int i = 0;
+    for(; i < m; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, row, i).div(sum).intoArray(row, i);
+    for(; i < n; i++)
+      row[i] /= sum;
+  }
+}
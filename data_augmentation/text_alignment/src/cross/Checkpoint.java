@@ -0,0 +1,269 @@
+package cross;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import fig.exec.*;
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Checkpoints of EM training, so that a run that dies can be continued
+ * with -resumeFrom.
+ * A checkpoint holds, for each aligner being trained, the parameters,
+ * the iteration counter, the AER and change-in-parameters histories and
+ * the state of its Convergence test
+ * (AERs still being computed in the background are lost).
+ * A checkpoint in the middle of an iteration also holds the partial
+ * expected counts (newParams) and the position in the corpus.
+ * Only the values of the parameters are saved, so a run must be resumed
+ * with the same data and options, which produce the same parameter entries.
+ *
+ * Checkpoints are written to <execDir>/checkpoint.bin (with -stages, to
+ * checkpoint.bin in the directory of each stage) in the background
+ * (via a temporary file, so there is always a complete one).
+ * Training only waits for a write before it overwrites parameters the write
+ * is still using.
+ */
+public class Checkpoint {
+  @Option(gloss="Write a checkpoint after every this many iterations (0 means never)")
+    public static int checkpointIters = 1;
+  @Option(gloss="Also write a checkpoint every this many sentences within an iteration (0 means never)")
+    public static int checkpointSentences = 0;
+
+  static final int VERSION = 3;
+  static final String FILE = "checkpoint.bin";
+
+  // Where training is in the corpus.
+  static class Position {
+    int t; // Next sentence
+    long numLeft; // Number of sentences left to process in training
+    int iterLeft; // Number of sentences left in this iteration (0 if we're between iterations)
+    double logLikelihood1, logLikelihood2; // So far in this iteration
+
+    Position(long numLeft) { this.numLeft = numLeft; }
+
+    void startIteration(int iterSize) {
+      iterLeft = (int)Math.min(iterSize, numLeft);
+      logLikelihood1 = logLikelihood2 = 0;
+    }
+    void next(int n) {
+      iterLeft--;
+      numLeft--;
+      t = (t+1) % n;
+    }
+  }
+
+  private final EMWordAligner[] aligners;
+  private final OrderedMap<Integer, String> jointAerMap; // null unless training jointly
+  private int numSentences = 0; // Since the last checkpoint
+
+  Checkpoint(EMWordAligner[] aligners, OrderedMap<Integer, String> jointAerMap) {
+    this.aligners = aligners;
+    this.jointAerMap = jointAerMap;
+  }
+
+  // Call before processing each sentence.
+  void beforeSentence(Position pos) {
+    if(checkpointSentences <= 0) return;
+    if(numSentences >= checkpointSentences && pos.iterLeft > 0) {
+      // Online EM can only stop between mini-batches
+      for(EMWordAligner wa : aligners)
+        if(wa.online != null && !wa.online.atBatchBoundary()) return;
+      write(pos);
+    }
+    numSentences++;
+  }
+
+  // Call at the end of each iteration (after the new parameters are in place).
+  void afterIteration(Position pos) {
+    EMWordAligner wa = aligners[0];
+    if(checkpointIters <= 0) return;
+    if(wa.trainDone() || (wa.iter-1) % checkpointIters == 0)
+      write(pos);
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Writing
+
+  // What we need to write, taken on the training thread.
+  // Parameters that training will modify before the write is done are copied.
+  private static class AlignerState {
+    String name, modelPrefix;
+    int iter, numIters;
+    List<String> aers, changes; // key, value, key, value, ...
+    Params params, newParams; // newParams is only saved during an iteration
+    OnlineEM online;
+    Convergence convergence;
+  }
+
+  private void write(final Position pos) {
+    final String path = Main.getFile(FILE);
+    if(path == null) return;
+    finishPendingWrite(); // Only keep one copy of the parameters around
+    numSentences = 0;
+
+    final boolean inIteration = pos.iterLeft > 0;
+    final List<AlignerState> states = new ArrayList<AlignerState>();
+    for(EMWordAligner wa : aligners) {
+      AlignerState state = new AlignerState();
+      state.name = wa.getName();
+      state.modelPrefix = wa.modelPrefix;
+      state.iter = wa.iter;
+      state.numIters = wa.numIters; // Smaller if training converged
+      state.aers = toList(wa.aerMap);
+      state.changes = toList(wa.changeMap);
+      if(wa.online != null) {
+        // Online EM changes the parameters after every mini-batch
+        state.params = new Params(wa.params);
+        state.online = wa.online.copy();
+      }
+      else
+        state.params = wa.params; // Not modified until the next initNewParams()
+      state.convergence = wa.convergence.copy();
+      if(inIteration) {
+        wa.flushCounts();
+        state.newParams = new Params(wa.newParams);
+      }
+      states.add(state);
+    }
+    final List<String> jointAers = jointAerMap == null ? null : toList(jointAerMap);
+    final int t = pos.t, iterLeft = pos.iterLeft;
+    final long numLeft = pos.numLeft;
+    final double logLikelihood1 = pos.logLikelihood1, logLikelihood2 = pos.logLikelihood2;
+
+    logs("Writing checkpoint (iteration %d, sentence %d) in the background", aligners[0].iter, t);
+    pendingWrite = executor.submit(new Callable<Object>() {
+      public Object call() throws IOException {
+        File tmpFile = new File(path + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile), 1<<16));
+        try {
+          out.writeInt(VERSION);
+          out.writeInt(states.size());
+          for(AlignerState state : states) {
+            out.writeUTF(state.name);
+            out.writeUTF(state.modelPrefix);
+            out.writeInt(state.iter);
+            out.writeInt(state.numIters);
+            writeList(out, state.aers);
+            writeList(out, state.changes);
+            state.params.writeValues(out);
+            out.writeBoolean(state.newParams != null);
+            if(state.newParams != null) state.newParams.writeValues(out);
+            out.writeBoolean(state.online != null);
+            if(state.online != null) state.online.writeState(out);
+            state.convergence.writeState(out);
+          }
+          out.writeBoolean(jointAers != null);
+          if(jointAers != null) writeList(out, jointAers);
+          out.writeInt(t);
+          out.writeLong(numLeft);
+          out.writeInt(iterLeft);
+          out.writeDouble(logLikelihood1);
+          out.writeDouble(logLikelihood2);
+        } finally {
+          out.close();
+        }
+        if(!tmpFile.renameTo(new File(path)))
+          throw new IOException("Can't rename " + tmpFile + " to " + path);
+        return null;
+      }
+    });
+  }
+
+  private static <S> List<String> toList(OrderedMap<S, String> map) {
+    List<String> list = new ArrayList<String>();
+    for(S key : map.keys()) {
+      list.add(key.toString());
+      list.add(map.get(key));
+    }
+    return list;
+  }
+  private static void writeList(DataOutputStream out, List<String> list) throws IOException {
+    out.writeInt(list.size());
+    for(String s : list) out.writeUTF(s);
+  }
+  private static List<String> readList(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    List<String> list = new ArrayList<String>(n);
+    for(int i = 0; i < n; i++) list.add(in.readUTF());
+    return list;
+  }
+
+  private static final ExecutorService executor =
+    Executors.newSingleThreadExecutor(ParallelDecoder.newDaemonThreadFactory("checkpoint"));
+  private static Future<?> pendingWrite;
+
+  // Wait for the checkpoint being written, if any.
+  // A checkpoint that can't be written is not fatal.
+  static void finishPendingWrite() {
+    if(pendingWrite == null) return;
+    try {
+      ParallelDecoder.getResult(pendingWrite);
+    } catch(RuntimeException e) {
+      warning("Failed to write checkpoint: " + e);
+    }
+    pendingWrite = null;
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Reading
+
+  // Restore the training state from the checkpoint in path
+  // (a checkpoint file or an execution directory).
+  // Call after the aligners are set up for training.
+  void resume(String path, Position pos) {
+    if(new File(path).isDirectory()) path = new File(path, FILE).toString();
+    track("Resuming from " + path);
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(path), 1<<16));
+      try {
+        if(in.readInt() != VERSION) throw new IOException("Wrong checkpoint version");
+        if(in.readInt() != aligners.length)
+          throw new IOException("Checkpoint has a different number of aligners");
+        for(EMWordAligner wa : aligners) {
+          String name = in.readUTF(), modelPrefix = in.readUTF();
+          if(!name.equals(wa.getName()) || !modelPrefix.equals(wa.modelPrefix))
+            throw new IOException("Checkpoint is for " + name + ", not " + wa.getName());
+          wa.iter = in.readInt();
+          wa.numIters = Math.min(wa.numIters, in.readInt());
+          List<String> aers = readList(in), changes = readList(in);
+          for(int i = 0; i < aers.size(); i += 2) wa.aerMap.put(aers.get(i), aers.get(i+1));
+          for(int i = 0; i < changes.size(); i += 2) wa.changeMap.put(changes.get(i), changes.get(i+1));
+          wa.params.readValues(in);
+          if(in.readBoolean()) {
+            wa.initNewParams();
+            wa.newParams.readValues(in);
+          }
+          boolean online = in.readBoolean();
+          if(online != (wa.online != null))
+            throw new IOException("Checkpoint " + (online ? "is" : "isn't") + " from online EM");
+          if(online) wa.online.readState(in);
+          wa.convergence.readState(in);
+          wa.trainingCache.clear();
+          logs("%s: iteration %d", wa.getName(), wa.iter);
+        }
+        if(in.readBoolean()) {
+          List<String> aers = readList(in);
+          if(jointAerMap != null)
+            for(int i = 0; i < aers.size(); i += 2)
+              jointAerMap.put(Integer.parseInt(aers.get(i)), aers.get(i+1));
+        }
+        pos.t = in.readInt();
+        pos.numLeft = in.readLong();
+        pos.iterLeft = in.readInt();
+        pos.logLikelihood1 = in.readDouble();
+        pos.logLikelihood2 = in.readDouble();
+        logs("Sentence %d, %d sentences left in this iteration, %d in all", pos.t, pos.iterLeft, pos.numLeft);
+      } finally {
+        in.close();
+      }
+    } catch(IOException e) {
+      throw new RuntimeException("Can't resume from " + path, e);
+    }
+    end_track();
+  }
+}
@@ -4,14 +4,36 @@ import fig.basic.*;
 import java.util.*;
 import static fig.basic.LogInfo.*;
 
+/**
+ * Computes the posteriors of the joint model, which puts weight
+ * P(a | e, f; model 1) P(b | e, f; model 2) on a pair of alignments
+ * that agree (a_j = i if and only if b_i = j), so alignments are one-to-one.
+ * Summing over all partial matchings is exponential, so there are several methods:
+ *  - BRUTE_FORCE: enumerate all partial matchings (toy sentences only).
+ *  - BRANCH_AND_BOUND: enumerate the partial matchings, but prune those whose
+ *    weight (bounded by ignoring the one-to-one constraint for the remaining
+ *    positions) is a tiny fraction of the weight found so far.
+ *    If more than exactMaxStates are explored, use BANDED instead.
+ *  - BANDED: only allow French position j to align to English positions within
+ *    exactBandWidth of the diagonal.  Then forward-backward over
+ *    (j, set of used English positions in the band) is exact for the
+ *    restricted model and takes O(J * 2^(2w+1) * w) time.
+ * The last two need the likelihood of both models to factor over positions
+ * (SentencePairState.linkWeight), which is true for Model 1 and 2.
+ */
 public class ComputeExactExpAlign {
+  public enum Method { BRUTE_FORCE, BRANCH_AND_BOUND, BANDED };
+
   private SentencePairState sps1, sps2;
-  private ExpAlign expAlign1, expAlign2;
   private int[] j2i, i2j;
   private int J, I;
   private double total;
   private double[][] table1, table2;
 
+  // Statistics about the last call to compute()
+  int numStates;
+  Method usedMethod;
+
   public ComputeExactExpAlign(SentencePairState sps1, SentencePairState sps2) {
     this.sps1 = sps1;
     this.sps2 = sps2;
@@ -33,6 +55,7 @@ public class ComputeExactExpAlign {
   }
 
   private void search(int j) {
+    numStates++;
     if(j == J) {
       double l1 = sps1.getLikelihood(j2i);
       double l2 = sps2.getLikelihood(i2j);
@@ -55,6 +78,10 @@ public class ComputeExactExpAlign {
   // sps1: e -> f, sps2: f -> e
   // We work in the context frame of sps1
   public void compute() {
+    compute(EMWordAligner.exactJointMethod);
+  }
+
+  public void compute(Method method) {
     J = sps1.J;
     I = sps1.I;
     j2i = new int[J]; Arrays.fill(j2i, I);
@@ -62,11 +89,324 @@ public class ComputeExactExpAlign {
     table1 = new double[J][I+1];
     table2 = new double[I][J+1];
     total = 0;
-    search(0);
+    numStates = 0;
+    usedMethod = method;
+
+    if(method == Method.BRUTE_FORCE)
+      search(0);
+    else {
+      computeLinkWeights();
+      if(method == Method.BANDED)
+        computeBanded(EMWordAligner.exactBandWidth);
+      else if(!computeBranchAndBound()) {
+        // Too many states, settle for the approximation
+        usedMethod = Method.BANDED;
+        computeBanded(EMWordAligner.exactBandWidth);
+      }
+    }
+
+    if(total == 0) {
+      warning("ComputeExactExpAlign: total weight is 0 (I=%d,J=%d), aligning everything to NULL", I, J);
+      for(int j = 0; j < J; j++) { Arrays.fill(table1[j], 0); table1[j][I] = 1; }
+      for(int i = 0; i < I; i++) { Arrays.fill(table2[i], 0); table2[i][J] = 1; }
+      return;
+    }
     NumUtils.scalarMult(table1, 1/total);
     NumUtils.scalarMult(table2, 1/total);
   }
 
   public ExpAlign getExpAlign1() { return new Model1ExpAlign(table1); }
   public ExpAlign getExpAlign2() { return new Model1ExpAlign(table2); }
+
+  ////////////////////////////////////////////////////////////
+  // Factored weights
+
+  // w1[j][i] = linkWeight of model 1 (i = I is NULL), w2[i][j] = linkWeight of model 2 (j = J is NULL).
+  // Each row is scaled to have maximum 1, which doesn't change the posteriors
+  // (every alignment uses exactly one entry from each row)
+  // but keeps the products from underflowing.
+  private double[][] w1, w2;
+
+  private void computeLinkWeights() {
+    w1 = new double[J][I+1];
+    w2 = new double[I][J+1];
+    for(int j = 0; j < J; j++) {
+      for(int i = 0; i <= I; i++) w1[j][i] = sps1.linkWeight(j, i);
+      scaleToMaxOne(w1[j]);
+    }
+    for(int i = 0; i < I; i++) {
+      for(int j = 0; j <= J; j++) w2[i][j] = sps2.linkWeight(i, j);
+      scaleToMaxOne(w2[i]);
+    }
+  }
+
+  private static void scaleToMaxOne(double[] w) {
+    double max = 0;
+    for(double x : w) max = Math.max(max, x);
+    if(max > 0)
+      for(int k = 0; k < w.length; k++) w[k] /= max;
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Branch and bound
+
+  private int[][] candidates; // candidates[j] = English positions (and NULL = I) in order of decreasing promise
+  private boolean truncated;
+
+  // Return false if we had to give up.
+  private boolean computeBranchAndBound() {
+    candidates = new int[J][];
+    for(int j = 0; j < J; j++) {
+      final double[] key = new double[I+1];
+      for(int i = 0; i < I; i++) key[i] = w1[j][i] * w2[i][j];
+      key[I] = w1[j][I];
+      Integer[] order = new Integer[I+1];
+      for(int i = 0; i <= I; i++) order[i] = i;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) { return Double.compare(key[b], key[a]); }
+      });
+      candidates[j] = new int[I+1];
+      for(int k = 0; k <= I; k++) candidates[j][k] = order[k];
+    }
+    truncated = false;
+    branchAndBound(0, 1);
+    if(truncated) {
+      for(double[] row : table1) Arrays.fill(row, 0);
+      for(double[] row : table2) Arrays.fill(row, 0);
+      total = 0;
+      return false;
+    }
+    return true;
+  }
+
+  // Upper bound on the total weight of all completions of the current
+  // partial alignment of positions 0..j-1, ignoring the one-to-one
+  // constraint among the remaining positions.
+  // (Rows of w2 have maximum 1, so each free English position contributes at most 1.)
+  private double completionBound(int j) {
+    double bound = 1;
+    for(int jj = j; jj < J; jj++) {
+      double sum = w1[jj][I];
+      for(int i = 0; i < I; i++)
+        if(i2j[i] == J) sum += w1[jj][i] * w2[i][jj];
+      bound *= sum;
+    }
+    return bound;
+  }
+
+  // weight: product of the weights of the links so far
+  private void branchAndBound(int j, double weight) {
+    if(truncated) return;
+    if(++numStates > EMWordAligner.exactMaxStates) { truncated = true; return; }
+
+    if(j == J) {
+      // Unaligned English positions
+      for(int i = 0; i < I; i++)
+        if(i2j[i] == J) weight *= w2[i][J];
+      total += weight;
+      for(    j = 0; j < J; j++) table1[j][j2i[j]] += weight;
+      for(int i = 0; i < I; i++) table2[i][i2j[i]] += weight;
+      return;
+    }
+
+    if(total > 0 && weight * completionBound(j) < EMWordAligner.exactPruneThreshold * total)
+      return; // Prune
+
+    for(int i : candidates[j]) {
+      if(i < I && i2j[i] != J) continue; // i already aligned
+      double w = (i < I ? w1[j][i] * w2[i][j] : w1[j][I]);
+      if(w == 0) continue;
+      j2i[j] = i; if(i < I) i2j[i] = j; // Align
+      branchAndBound(j+1, weight * w);
+      j2i[j] = I; if(i < I) i2j[i] = J; // Undo align
+    }
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Banded forward-backward
+
+  private int[] lo, hi; // Band of English positions for each French position
+
+  // Sets total to the normalization constant relative to the scaling
+  // (which is all we need, since we normalize by it).
+  private void computeBanded(int w) {
+    if(w < 0 || 2*w+1 >= 31) // Masks are ints
+      throw new RuntimeException("exactBandWidth must be between 0 and 14, not " + w);
+    if(J == 0) {
+      for(int i = 0; i < I; i++) table2[i][J] = 1;
+      total = 1;
+      return;
+    }
+    if(I == 0) {
+      for(int j = 0; j < J; j++) table1[j][I] = 1;
+      total = 1;
+      return;
+    }
+
+    // Band: [lo[j], hi[j]] around the diagonal; lo[J] = I means drop everything at the end
+    lo = new int[J+1];
+    hi = new int[J];
+    for(int j = 0; j < J; j++) {
+      int c = (2*I*j + I) / (2*J);
+      lo[j] = Math.max(0, c-w);
+      hi[j] = Math.min(I-1, c+w);
+    }
+    lo[J] = I;
+
+    // Masks over the band of j: bit k means English position lo[j]+k is used
+    // alpha[j][mask]: scaled weight of aligning 0..j-1 and using mask before j
+    double[][] alpha = new double[J+1][];
+    double[] scale = new double[J+1];
+    alpha[0] = new double[1 << width(0)];
+    alpha[0][0] = 1;
+    for(int j = 0; j < J; j++) {
+      alpha[j+1] = new double[j+1 < J ? 1 << width(j+1) : 1];
+      for(int mask = 0; mask < alpha[j].length; mask++) {
+        double a = alpha[j][mask];
+        if(a == 0) continue;
+        for(int k = -1; k < width(j); k++) { // k = -1 means NULL
+          double t = transWeight(j, mask, k);
+          if(t == 0) continue;
+          alpha[j+1][nextMask(j, mask, k)] += a * t;
+        }
+      }
+      scale[j+1] = ListUtils.sum(alpha[j+1]);
+      if(scale[j+1] == 0) { total = 0; return; }
+      for(int mask = 0; mask < alpha[j+1].length; mask++) alpha[j+1][mask] /= scale[j+1];
+    }
+
+    // Backward pass; read off the posteriors of the links as we go
+    double[] beta = new double[] { 1 };
+    for(int j = J-1; j >= 0; j--) {
+      double[] prevBeta = new double[alpha[j].length];
+      for(int mask = 0; mask < alpha[j].length; mask++) {
+        double a = alpha[j][mask];
+        for(int k = -1; k < width(j); k++) {
+          double t = transWeight(j, mask, k);
+          if(t == 0) continue;
+          double b = t * beta[nextMask(j, mask, k)] / scale[j+1];
+          prevBeta[mask] += b;
+          double p = a * b;
+          if(p == 0) continue;
+          int i = (k == -1 ? I : lo[j]+k);
+          table1[j][i] += p;
+          if(i < I) table2[i][j] += p;
+        }
+      }
+      beta = prevBeta;
+    }
+
+    // English positions that nobody aligned to
+    for(int i = 0; i < I; i++) {
+      double p = 1;
+      for(int j = 0; j < J; j++) p -= table2[i][j];
+      table2[i][J] = Math.max(p, 0);
+    }
+    total = 1; // Already normalized
+  }
+
+  private int width(int j) { return hi[j]-lo[j]+1; }
+
+  // Weight of aligning j to lo[j]+k (k = -1 means NULL) given used positions in mask,
+  // times the weight of leaving the English positions which drop out of the band unaligned.
+  private double transWeight(int j, int mask, int k) {
+    double t;
+    if(k == -1) t = w1[j][I];
+    else {
+      if((mask & (1 << k)) != 0) return 0; // Already used
+      int i = lo[j]+k;
+      t = w1[j][i] * w2[i][j];
+      mask |= 1 << k;
+    }
+    // Positions lo[j], ..., lo[j+1]-1 are never considered again
+    for(int i = lo[j]; i < lo[j+1]; i++) {
+      if(i <= hi[j] && (mask & (1 << (i-lo[j]))) != 0) continue; // Used
+      t *= w2[i][J];
+    }
+    return t;
+  }
+
+  private int nextMask(int j, int mask, int k) {
+    if(k != -1) mask |= 1 << k;
+    int shift = lo[j+1]-lo[j];
+    if(shift >= 32) return 0; // The whole band drops out (and Java would shift by shift % 32)
+    return mask >> shift & ((1 << (j+1 < J ? width(j+1) : 0)) - 1);
+  }
+
+  ////////////////////////////////////////////////////////////
+
+  /**
+   * Benchmark: compare the methods (and the usual merge approximation
+   * of the two models' posteriors) against brute force on short sentences.
+   * Run with the parameters of two trained Model 1s, for example
+   *   cross.ComputeExactExpAlign -model MODEL1 -loadParamsDir <exec>/model1 -train <sentences> -maxLength 8
+   */
+  @Option(gloss="Only compare sentences with at most this many words in each language")
+    public static int maxLength = 8;
+
+  public static void main(String[] args) {
+    OptionsParser.register("main", Main.class);
+    OptionsParser.register("em", EMWordAligner.class);
+    OptionsParser.register("exact", ComputeExactExpAlign.class);
+    fig.exec.Execution.init(args);
+
+    List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
+    for(String source : Main.trainSources)
+      Main.readSentencePairsFromSource(source, 0, Main.maxTrainSentences, new Interner<String>(), sentencePairs);
+    EMWordAligner wa1 = new EMWordAligner(new Model1SentencePairState.Factory(), null, false);
+    EMWordAligner wa2 = new EMWordAligner(new Model1SentencePairState.Factory(), null, true);
+    wa1.loadParams(Main.loadParamsDir);
+    wa2.loadParams(Main.loadParamsDir);
+
+    Method[] methods = new Method[] { Method.BRANCH_AND_BOUND, Method.BANDED };
+    BigStatFig[] errors = new BigStatFig[methods.length+1]; // Last one is merge
+    long[] times = new long[methods.length+2]; // First one is brute force
+    for(int m = 0; m < errors.length; m++) errors[m] = new BigStatFig();
+
+    track("Comparing with brute force");
+    int n = 0;
+    for(SentencePair sp : sentencePairs) {
+      if(sp.I() > maxLength || sp.J() > maxLength) continue;
+      n++;
+      SentencePairState sps1 = wa1.newSentencePairState(sp);
+      SentencePairState sps2 = wa2.newSentencePairState(sp);
+
+      long start = System.nanoTime();
+      ComputeExactExpAlign exact = new ComputeExactExpAlign(sps1, sps2);
+      exact.compute(Method.BRUTE_FORCE);
+      times[0] += System.nanoTime() - start;
+      ExpAlign exactExpAlign = exact.getExpAlign1();
+
+      for(int m = 0; m < methods.length; m++) {
+        start = System.nanoTime();
+        ComputeExactExpAlign c = new ComputeExactExpAlign(sps1, sps2);
+        c.compute(methods[m]);
+        times[m+1] += System.nanoTime() - start;
+        addErrors(errors[m], exactExpAlign, c.getExpAlign1());
+      }
+
+      start = System.nanoTime();
+      ExpAlign ea1 = sps1.computeExpAlign();
+      ExpAlign ea2 = sps2.computeExpAlign();
+      ea1.merge(ea1, ea2);
+      times[methods.length+1] += System.nanoTime() - start;
+      addErrors(errors[methods.length], exactExpAlign, ea1);
+    }
+    logss("%d sentences with at most %d words", n, maxLength);
+    logss("BRUTE_FORCE: %s", Fmt.D(times[0]/1e9) + "s");
+    for(int m = 0; m <= methods.length; m++) {
+      String name = m < methods.length ? methods[m].toString() : "merge";
+      logss("%s: %ss, absolute error in posteriors: %s", name, Fmt.D(times[m+1]/1e9), errors[m]);
+      fig.exec.Execution.putOutput(name + ".error", Fmt.D(errors[m].mean()));
+    }
+    end_track();
+
+    fig.exec.Execution.finish();
+  }
+
+  private static void addErrors(BigStatFig fig, ExpAlign exact, ExpAlign approx) {
+    for(int j = 0; j < exact.J(); j++)
+      for(int i = 0; i < exact.I(); i++)
+        fig.add(Math.abs(exact.get(j, i) - approx.get(j, i)));
+  }
 }
@@ -0,0 +1,191 @@
+package cross;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import fig.basic.*;
+import fig.exec.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Expected translation counts that several threads can add to at once,
+ * without a copy of the count table per thread.
+ * The keys of the table must be locked (as they are during training), so
+ * that each (u, v) has a fixed position in u's StringDoubleMap.
+ * For each row we keep an AtomicLongArray parallel to that map, holding
+ * doubles as their raw long bits, and add to a cell with compare-and-set.
+ * Call flush() once the threads are done to add the counts to the table.
+ *
+ * The order in which counts are added depends on the scheduling of the
+ * threads, so sums can differ from run to run in the last bits.
+ */
+public class ConcurrentCounts {
+  static class Row {
+    private final StringDoubleMap map;
+    private final AtomicLongArray cells;
+
+    Row(StringDoubleMap map) {
+      if(!map.isLocked()) throw new IllegalArgumentException("Keys must be locked");
+      this.map = map;
+      this.cells = new AtomicLongArray(map.capacity());
+    }
+
+    void incr(String v, double dValue) {
+      int i = map.indexOf(v);
+      if(i == -1) throw new RuntimeException("Cannot make new entry for " + v + ", because map is locked");
+      while(true) {
+        long bits = cells.get(i);
+        long newBits = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + dValue);
+        if(cells.compareAndSet(i, bits, newBits)) return;
+      }
+    }
+
+    private void flush() {
+      for(int i = 0; i < cells.length(); i++) {
+        long bits = cells.getAndSet(i, 0); // 0 is the bits of 0.0
+        if(bits != 0) map.incrAt(i, Double.longBitsToDouble(bits));
+      }
+    }
+  }
+
+  // Only read after construction, so threads can share it
+  private final Map<String, Row> rows = new HashMap<String, Row>();
+
+  ConcurrentCounts(StrCondProbTable table) {
+    for(Map.Entry<String, StringDoubleMap> e : table)
+      rows.put(e.getKey(), new Row(e.getValue()));
+  }
+
+  Row getRow(String u) {
+    Row row = rows.get(u);
+    if(row == null) throw new RuntimeException("Cannot make new entry for " + u + ", because map is locked");
+    return row;
+  }
+
+  // Add the counts to the table and reset them.
+  // No thread may be adding counts at the same time.
+  void flush() {
+    for(Row row : rows.values())
+      row.flush();
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Benchmark: adding the expected counts of a corpus with Main.numThreads
+  // threads, through ConcurrentCounts or through a copy of the count table
+  // per thread (merged at the end), compared with one thread.
+  // Usage: java cross.ConcurrentCounts -model MODEL1 -train <data> -loadParamsDir <dir> -numThreads 4
+
+  @Option(gloss="Number of times to add the counts of the corpus")
+    public static int benchmarkRepeats = 5;
+
+  public static void main(String[] args) {
+    OptionsParser.register("main", Main.class);
+    OptionsParser.register("em", EMWordAligner.class);
+    OptionsParser.register("counts", ConcurrentCounts.class);
+    Execution.init(args);
+
+    List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
+    for(String source : Main.trainSources)
+      Main.readSentencePairsFromSource(source, 0, Main.maxTrainSentences, new Interner<String>(), sentencePairs);
+    final EMWordAligner wa = new EMWordAligner(new Model1SentencePairState.Factory(), null, false);
+    wa.loadParams(Main.loadParamsDir);
+
+    // Compute the posteriors once, so that we only time adding the counts
+    final List<SentencePairState> states = new ArrayList<SentencePairState>();
+    final List<ExpAlign> expAligns = new ArrayList<ExpAlign>();
+    for(SentencePair sp : sentencePairs) {
+      SentencePairState sps = wa.newSentencePairState(sp);
+      states.add(sps);
+      expAligns.add(sps.computeExpAlign());
+    }
+    int numThreads = Math.max(1, Main.numThreads);
+    logss("%d sentences, %d threads, %d repeats", states.size(), numThreads, benchmarkRepeats);
+
+    // One thread
+    Params serial = newCounts(wa.params);
+    long start = System.nanoTime();
+    for(int r = 0; r < benchmarkRepeats; r++)
+      for(int k = 0; k < states.size(); k++)
+        states.get(k).updateTransProbs(expAligns.get(k), serial.transProbs);
+    report("serial", System.nanoTime() - start, serial, serial, 0);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+        ParallelDecoder.newDaemonThreadFactory("counts"));
+    try {
+      // Shared lock-free counts
+      Params shared = newCounts(wa.params);
+      start = System.nanoTime();
+      final ConcurrentCounts counts = new ConcurrentCounts(shared.transProbs);
+      runThreads(executor, numThreads, states.size(), new Scatter() {
+        public void add(int thread, int k) { states.get(k).updateTransProbs(expAligns.get(k), counts); }
+      });
+      counts.flush();
+      report("concurrent", System.nanoTime() - start, shared, serial, 0);
+
+      // A copy of the counts per thread
+      Params buffered = newCounts(wa.params);
+      start = System.nanoTime();
+      final Params[] buffers = new Params[numThreads];
+      for(int t = 0; t < numThreads; t++) buffers[t] = newCounts(wa.params);
+      runThreads(executor, numThreads, states.size(), new Scatter() {
+        public void add(int thread, int k) { states.get(k).updateTransProbs(expAligns.get(k), buffers[thread].transProbs); }
+      });
+      for(Params buffer : buffers)
+        for(Map.Entry<String, StringDoubleMap> e : buffered.transProbs)
+          e.getValue().incrAll(buffer.transProbs.getMap(e.getKey(), false), 1);
+      report("perThread", System.nanoTime() - start, buffered, serial, numThreads);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Execution.finish();
+  }
+
+  private interface Scatter {
+    public void add(int thread, int k);
+  }
+
+  // Each of numThreads threads takes sentences (benchmarkRepeats passes over n) from a shared counter.
+  private static void runThreads(ExecutorService executor, int numThreads, final int n, final Scatter scatter) {
+    final AtomicInteger next = new AtomicInteger(0);
+    final int total = n * benchmarkRepeats;
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for(int t = 0; t < numThreads; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Runnable() {
+        public void run() {
+          int k;
+          while((k = next.getAndIncrement()) < total)
+            scatter.add(thread, k % n);
+        }
+      }));
+    }
+    for(Future<?> future : futures) ParallelDecoder.getResult(future);
+  }
+
+  // Zero counts with the same keys as params
+  private static Params newCounts(Params params) {
+    Params counts = new Params(params);
+    counts.initZero();
+    return counts;
+  }
+
+  private static void report(String name, long time, Params counts, Params serial, int numBuffers) {
+    // Relative difference from adding everything on one thread
+    double maxDiff = 0;
+    long numEntries = 0;
+    for(Map.Entry<String, StringDoubleMap> e : serial.transProbs) {
+      StringDoubleMap m = counts.transProbs.getMap(e.getKey(), false);
+      for(StringDoubleMap.Entry entry : e.getValue()) {
+        double a = entry.getValue(), b = m.getSure(entry.getKey());
+        if(a != 0) maxDiff = Math.max(maxDiff, Math.abs(a-b) / Math.abs(a));
+        numEntries++;
+      }
+    }
+    logss("%s: %ss, extra memory for buffers %s, max relative difference from serial %s", name,
+        Fmt.D(time/1e9), Fmt.bytesToString(8 * numEntries * numBuffers), Fmt.D(maxDiff));
+    Execution.putOutput(name + ".time", Fmt.D(time/1e9));
+    Execution.putOutput(name + ".maxDiff", Fmt.D(maxDiff));
+  }
+}
@@ -0,0 +1,133 @@
+package cross;
+
+import java.io.*;
+import java.util.*;
+
+import fig.exec.*;
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Decides when an IterWordAligner has converged, so that training can stop
+ * before numIters iterations.  Training stops when any of the enabled
+ * criteria holds (after at least minIters iterations):
+ *  - the relative improvement in log-likelihood is below stopLogLikelihood,
+ *  - the mean (max) change in the translation parameters is below
+ *    stopMeanChange (stopMaxChange),
+ *  - the AER hasn't improved by stopAERImprovement in the last
+ *    stopAERPatience evaluations.
+ */
+public class Convergence {
+  @Option(gloss="Don't stop before this many iterations")
+    public static int minIters = 2;
+  @Option(gloss="Stop when the relative improvement in log-likelihood is below this (0 means don't)")
+    public static double stopLogLikelihood = 0;
+  @Option(gloss="Stop when the mean change in the translation parameters is below this (0 means don't)")
+    public static double stopMeanChange = 0;
+  @Option(gloss="Stop when the maximum change in the translation parameters is below this (0 means don't)")
+    public static double stopMaxChange = 0;
+  @Option(gloss="Stop when the AER hasn't improved in this many evaluations (0 means don't)")
+    public static int stopAERPatience = 0;
+  @Option(gloss="Improvements in AER smaller than this don't count")
+    public static double stopAERImprovement = 0.001;
+
+  private double lastLogLikelihood = Double.NaN, logLikelihood = Double.NaN;
+  private int numChanges; // Change in parameters in the last iteration: number, mean and max
+  private double meanChange, maxChange;
+  private final List<Double> aers = new ArrayList<Double>();
+
+  // Log-likelihood of the training data under the parameters of the last iteration.
+  synchronized void addLogLikelihood(double ll) {
+    lastLogLikelihood = logLikelihood;
+    logLikelihood = ll;
+  }
+  synchronized void setChange(BigStatFig change) {
+    numChanges = change.size();
+    meanChange = change.mean();
+    maxChange = change.getMax();
+  }
+  synchronized void addAER(double aer) { aers.add(aer); } // Maybe from a background evaluation
+
+  synchronized Convergence copy() {
+    Convergence c = new Convergence();
+    c.lastLogLikelihood = lastLogLikelihood;
+    c.logLikelihood = logLikelihood;
+    c.numChanges = numChanges;
+    c.meanChange = meanChange;
+    c.maxChange = maxChange;
+    c.aers.addAll(aers);
+    return c;
+  }
+
+  // For checkpoints.
+  void writeState(DataOutputStream out) throws IOException {
+    out.writeDouble(lastLogLikelihood);
+    out.writeDouble(logLikelihood);
+    out.writeInt(numChanges);
+    out.writeDouble(meanChange);
+    out.writeDouble(maxChange);
+    out.writeInt(aers.size());
+    for(double aer : aers) out.writeDouble(aer);
+  }
+  synchronized void readState(DataInputStream in) throws IOException {
+    lastLogLikelihood = in.readDouble();
+    logLikelihood = in.readDouble();
+    numChanges = in.readInt();
+    meanChange = in.readDouble();
+    maxChange = in.readDouble();
+    aers.clear();
+    for(int n = in.readInt(); n > 0; n--) aers.add(in.readDouble());
+  }
+
+  // Return why we should stop after iteration iter, or null to keep going.
+  synchronized String stopReason(int iter) {
+    if(iter < minIters) return null;
+    if(stopLogLikelihood > 0 && NumUtils.isFinite(lastLogLikelihood) && NumUtils.isFinite(logLikelihood)) {
+      double improvement = (logLikelihood - lastLogLikelihood) / Math.abs(lastLogLikelihood);
+      if(improvement < stopLogLikelihood)
+        return "relative log-likelihood improvement " + Fmt.D(improvement) + " < " + stopLogLikelihood;
+    }
+    if(numChanges > 0) {
+      if(stopMeanChange > 0 && meanChange < stopMeanChange)
+        return "mean change in parameters " + Fmt.D(meanChange) + " < " + stopMeanChange;
+      if(stopMaxChange > 0 && maxChange < stopMaxChange)
+        return "max change in parameters " + Fmt.D(maxChange) + " < " + stopMaxChange;
+    }
+    if(stopAERPatience > 0 && aers.size() > stopAERPatience) {
+      // Best AER before the last stopAERPatience evaluations vs. the best since
+      int n = aers.size() - stopAERPatience;
+      double bestBefore = Collections.min(aers.subList(0, n));
+      double bestSince = Collections.min(aers.subList(n, aers.size()));
+      if(bestBefore - bestSince < stopAERImprovement)
+        return "AER hasn't improved by " + stopAERImprovement + " in " + stopAERPatience + " evaluations";
+    }
+    return null;
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Cost of each iteration
+
+  private static long iterStartTime;
+  private static FlightEvents.Event iterEvent;
+
+  // Call at the start of iteration iter (of numIters).
+  static void startIteration(int iter, int numIters) {
+    iterStartTime = System.nanoTime();
+    SysInfoUtils.resetPeakHeapMemory();
+    Metrics.set("train_iteration", iter);
+    Metrics.set("train_iterations", numIters);
+    iterEvent = FlightEvents.begin("cross.Iteration");
+  }
+
+  // Report the cost of iteration iter, which went over numSentences sentences.
+  static void endIteration(int iter, int numSentences) {
+    double seconds = (System.nanoTime() - iterStartTime) / 1e9;
+    long peakMemory = SysInfoUtils.getPeakHeapMemory();
+    logss("Iteration %d: %ss, %s sentences/s, peak memory %s", iter,
+        Fmt.D(seconds), Fmt.D(numSentences/seconds), Fmt.bytesToString(peakMemory));
+    Main.putOutput("iter" + iter + ".time", Fmt.D(seconds));
+    Main.putOutput("iter" + iter + ".sentencesPerSec", Fmt.D(numSentences/seconds));
+    Main.putOutput("iter" + iter + ".peakMemory", Fmt.bytesToString(peakMemory));
+    iterEvent.sentences(numSentences).info("iteration " + iter).end();
+  }
+}
@@ -1,6 +1,7 @@
 package cross;
 
 import fig.basic.*;
+import fig.exec.*;
 import static fig.basic.LogInfo.*;
 import java.io.*;
 import java.util.*;
@@ -21,6 +22,11 @@ public class DistortProbTable implements Serializable {
   private double[][] probs = null;
   private transient double[][] sums = null; // Partial sums (for normalization)
   // sums[state][k] = probs[state][0] + ... + probs[state][k-1]
+  // Dense tables of get() for each (state, I) asked for (see getTable()),
+  // thrown away whenever the probabilities change
+  private transient Map<Long, double[][]> tables = null;
+  // Don't keep tables for longer sentences around
+  static final int maxTableLength = 200;
 
   public DistortProbTable() { alloc(); }
 
@@ -33,6 +39,7 @@ public class DistortProbTable implements Serializable {
 
   public void set(DistortProbTable table) {
     if(probs == null) return;
+    tables = null;
     probs = NumUtils.copy(table.probs);
     sums = NumUtils.copy(table.sums);
   }
@@ -81,6 +88,41 @@ public class DistortProbTable implements Serializable {
     return probs[state][d+windowSize] / div / norm;
   }
 
+  // Return table[h+1][i+1] = get(state, h, i, I) for -1 <= h, i <= I,
+  // computed once for the current probabilities (NaN where get() wouldn't
+  // make sense, i.e., where no position shares the bucket).
+  // Use get(table, state, h, i, I) to read it.
+  public synchronized double[][] getTable(int state, int I) {
+    long key = ((long)state << 32) | I;
+    double[][] table = tables == null ? null : tables.get(key);
+    Metrics.incr(table == null ? "distort_table_cache_misses_total" : "distort_table_cache_hits_total", 1);
+    if(table != null) return table;
+
+    table = new double[I+2][I+2];
+    for(int h = -1; h <= I; h++) {
+      double norm = computeNorm(state, h, I);
+      for(int i = -1; i <= I; i++) {
+        int d = i-h, div;
+        if(d <= -windowSize) { d = -windowSize; div = (h-windowSize)-0 + 1; }
+        else if(d >= windowSize) { d = windowSize; div = I-(h+windowSize) + 1; }
+        else div = 1;
+        if(norm == 0) table[h+1][i+1] = 0;
+        else if(div <= 0) table[h+1][i+1] = Double.NaN;
+        else table[h+1][i+1] = probs[state][d+windowSize] / div / norm;
+      }
+    }
+    if(I <= maxTableLength) {
+      if(tables == null) tables = new HashMap<Long, double[][]>();
+      tables.put(key, table);
+    }
+    return table;
+  }
+  // Same as get(state, h, i, I), where table = getTable(state, I).
+  public double get(double[][] table, int state, int h, int i, int I) {
+    double p = table[h+1][i+1];
+    return Double.isNaN(p) ? get(state, h, i, I) : p;
+  }
+
   public void add(int state, int h, int i, int I, double count) {
     //dbg("DistortProbTable.add state=%d, %d -> %d: %f", state, h, i, count);
     int d = i-h;
@@ -90,9 +132,26 @@ public class DistortProbTable implements Serializable {
     // by the number of divisions, the maximum likelihood estimate of that
     // parameter does not scale the count.
     probs[state][d+windowSize] += count; ///d_div.second;
+    tables = null;
+  }
+
+  // this += scale * table (for accumulating expected counts)
+  public void incrAll(DistortProbTable table, double scale) {
+    if(probs == null) return;
+    tables = null;
+    for(int state = 0; state < probs.length; state++)
+      for(int k = 0; k < probs[state].length; k++)
+        probs[state][k] += scale * table.probs[state][k];
+  }
+  public void multAll(double scale) {
+    if(probs == null) return;
+    tables = null;
+    for(double[] p : probs)
+      for(int k = 0; k < p.length; k++) p[k] *= scale;
   }
 
   public void computeSums() {
+    tables = null;
     if(sums == null) sums = new double[numStates][2*windowSize+1+1];
     for(int state = 0; state < probs.length; state++) {
       Arrays.fill(sums[state], 0);
@@ -132,6 +191,21 @@ public class DistortProbTable implements Serializable {
     }
   }
 
+  // Binary dump of the probabilities (for checkpoints).
+  public void writeValues(DataOutputStream out) throws IOException {
+    out.writeInt(numStates());
+    for(int state = 0; state < numStates(); state++)
+      for(double x : probs[state]) out.writeDouble(x);
+  }
+  public void readValues(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if(n != numStates())
+      throw new IOException("Expected " + numStates() + " distortion states, but got " + n);
+    for(int state = 0; state < n; state++)
+      for(int k = 0; k < probs[state].length; k++) probs[state][k] = in.readDouble();
+    if(n > 0) computeSums();
+  }
+
   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
     HMMSentencePairState.StateType currStateType = HMMSentencePairState.stateType;
     HMMSentencePairState.StateType readStateType = (HMMSentencePairState.StateType)in.readObject();
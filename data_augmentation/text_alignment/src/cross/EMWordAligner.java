@@ -2,6 +2,8 @@ package cross;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import fig.exec.*;
 import fig.basic.*;
@@ -23,12 +25,26 @@ public class EMWordAligner extends IterWordAligner {
     public static boolean usePosteriorDecoding = true;
   @Option(gloss="Threshold in [0,1] for deciding whether an alignment should exist.")
     public static double posteriorDecodingThreshold = 0.5;
+  @Option(gloss="Posterior decoding: only keep the top this many links per word (0 means keep all I*J posteriors)")
+    public static int posteriorTopK = 0;
+  @Option(gloss="Posterior decoding with posteriorTopK: drop links with posterior below this")
+    public static double posteriorEpsilon = 1e-4;
   @Option(gloss="When merging expected sufficient statistics, take into account the NULL (fix).")
     public static boolean mergeConsiderNull = false;
   @Option(gloss="Merge only on last iteration (test)")
     public static boolean mergeOnlyOnLastIteration = false;
   @Option(gloss="Actually compute the exact posterior (q) when doing joint training")
     public static boolean exactJointExp = false;
+  @Option(gloss="How to compute the exact posterior (BANDED is only exact within the band)")
+    public static ComputeExactExpAlign.Method exactJointMethod = ComputeExactExpAlign.Method.BRANCH_AND_BOUND;
+  @Option(gloss="Branch and bound gives up on a sentence (and uses BANDED) after exploring this many states")
+    public static int exactMaxStates = 1000000;
+  @Option(gloss="Branch and bound prunes partial alignments whose bound is below this fraction of the total so far")
+    public static double exactPruneThreshold = 1e-8;
+  @Option(gloss="Banded: French position j can align to English positions within this distance of the diagonal")
+    public static int exactBandWidth = 4;
+  @Option(gloss="Joint training: compute the two directions' posteriors concurrently for sentences with I*J at least this (needs numThreads > 1; 0 means never)")
+    public static int jointParallelMinSize = 400;
   @Option(gloss="Don't puke with unknown words")
     public static boolean handleUnknownWords = false;
 
@@ -44,6 +60,37 @@ public class EMWordAligner extends IterWordAligner {
     public static double distortTotalConcentration = Double.NaN;
   @Option(gloss="Randomness for sampling")
     public static Random random = new Random(1);
+  @Option(gloss="Online (stepwise) EM: update the parameters after every this many sentences (0 means batch EM)")
+    public static int onlineBatchSize = 0;
+  @Option(gloss="Online EM: step size is (k+onlineStepOffset)^-onlineStepExponent after k updates (in (0.5, 1])")
+    public static double onlineStepExponent = 0.7;
+  @Option(gloss="Online EM: offset in the step size schedule")
+    public static double onlineStepOffset = 2;
+  @Option(gloss="Online EM: record the change in parameters and evaluate every this many updates (0 means once per pass)")
+    public static int onlineCheckpointEvery = 0;
+  @Option(gloss="Batch EM (train()): compute the expected counts on numThreads threads (sums can differ in the last bits from run to run; no checkpoints within an iteration)")
+    public static boolean parallelEStep = false;
+  @Option(gloss="Model 1/2: compute the posteriors with the Vector API (needs Java 16+, src-vector compiled by make and java --add-modules jdk.incubator.vector; sums can differ in the last bits)")
+    public static boolean vectorKernels = false;
+  @Option(gloss="Store the translation probabilities as floats to save memory (expected counts are still added up in doubles)")
+    public static boolean floatParams = false;
+  @Option(gloss="Keep the translation probabilities and counts off the Java heap (see -XX:MaxDirectMemorySize), and save/load them as a memory-mappable <prefix>.params.csr")
+    public static boolean offHeapParams = false;
+  @Option(gloss="Buffer this many translation counts and add them to the count table sorted (0 means add each sentence's counts directly)")
+    public static int countBufferSize = 1<<16;
+  @Option(gloss="Number of sentences per E-step flight recorder event (with -jfrEvents)")
+    public static int jfrBatchSize = 100;
+  @Option(gloss="Write the this many slowest sentences (by E-step time) of each iteration to slowSentences (0 means don't)")
+    public static int slowSentences = 0;
+  @Option(gloss="Training sentences whose E-step cost (about (I+1)J for Model 1, J(2I+4)^2 for the HMM) is over this are skipped or split (0 means no limit)")
+    public static double maxSentenceCost = 0;
+  @Option(gloss="What to do with sentences over maxSentenceCost")
+    public static OverCostAction overCost = OverCostAction.SPLIT;
+
+  public enum OverCostAction { SKIP, SPLIT };
+
+  OnlineEM online; // Not null during online EM
+  SparseCounts countBuffer; // Translation counts on their way to newParams (null if not buffering)
 
   public EMWordAligner(SentencePairState.Factory spsFactory, Evaluator evaluator,
       boolean reverse) {
@@ -65,6 +112,14 @@ public class EMWordAligner extends IterWordAligner {
     return spsFactory.getName() + (reverse ? ":reversed" : ":normal");
   }
 
+  // Shares the parameters, but not the training cache (which depends on the parameters).
+  // Online EM keeps changing params, so use the ones from the last checkpoint.
+  EMWordAligner snapshot() {
+    EMWordAligner wa = new EMWordAligner(spsFactory, evaluator, reverse);
+    wa.params = online == null ? params : online.checkpointParams;
+    return wa;
+  }
+
   /*double logLikelihood(List<SentencePair> sentences) {
     double ll = 0;
     for(SentencePair sp : sentences) {
@@ -78,6 +133,27 @@ public class EMWordAligner extends IterWordAligner {
     initParams(wpStats, nullWord, true);
   }
 
+  // Start from the parameters of prev, the same direction trained by an
+  // earlier stage in this process (see Main.stages), instead of saving and
+  // loading them: take over its translation tables (both params and
+  // newParams, which have the same entries) and only allocate the
+  // distortions for this model (uniform, as when loading Model 1 parameters).
+  // prev can't be used afterwards.
+  void initParams(EMWordAligner prev) {
+    params = prev.params;
+    newParams = prev.newParams;
+    prev.params = prev.newParams = null;
+    params.name = getName();
+    params.distortProbs = new DistortProbTable();
+    params.distortProbs.initUniform();
+    if(newParams != null) {
+      newParams.name = getName();
+      newParams.distortProbs = new DistortProbTable();
+    }
+    trainingCache.clear();
+    logs("Took over the parameters of " + prev.getName());
+  }
+
   // If nullWord is not null, then consider nullWord in initialization
   /*void initPruneParams(List<SentencePair> sentences) {
     // Intialize parameters (set those we want to consider)
@@ -114,51 +190,176 @@ public class EMWordAligner extends IterWordAligner {
 
   public void train(List<SentencePair> sentences, int numIters) {
     track("EMWordAligner.train(): " + sentences.size() + " sentences");
-
-    initTrain(numIters);
+    sentences = SlowSentences.capCost(sentences, this);
+    SlowSentences slow = SlowSentences.create();
+
+    // With online EM, an iteration goes from one checkpoint to the next
+    // (and numIters is the number of passes over the data)
+    int n = sentences.size();
+    int iterSize = onlineBatchSize > 0 ? OnlineEM.checkpointSize(n) : n;
+    Checkpoint.Position pos = new Checkpoint.Position((long)numIters * n);
+    initTrain(onlineBatchSize > 0 ? (int)((pos.numLeft+iterSize-1) / iterSize) : numIters);
+    if(onlineBatchSize > 0) online = new OnlineEM(this);
+    Checkpoint checkpoint = new Checkpoint(new EMWordAligner[] { this }, null);
+    String resumeFrom = Main.getResumeFrom();
+    if(resumeFrom != null) checkpoint.resume(resumeFrom, pos);
     Record.begin("train");
     while(!trainDone()) {
-      track("Iteration " + iter + "/" + numIters);
+      track("Iteration " + iter + "/" + this.numIters);
       Record.begin("iteration", iter);
 
-      initNewParams();
-      double logLikelihood = 0;
-      for(int t = 0; t < sentences.size(); t++) {
-        logs("Sentence " + t + "/" + sentences.size());
+      if(pos.iterLeft == 0) { // Otherwise, we resumed in the middle of this iteration
+        initNewParams();
+        pos.startIteration(iterSize);
+      }
+      Convergence.startIteration(iter, this.numIters);
+      int iterSentences = pos.iterLeft;
+      if(parallelEStep && Main.numThreads > 1 && online == null && !Main.rantOutput)
+        parallelEStep(sentences, pos, slow);
+      FlightEvents.Event batchEvent = null;
+      for(; pos.iterLeft > 0; pos.next(n)) {
+        checkpoint.beforeSentence(pos);
+        int t = pos.t;
+        if(wouldPrint()) logs("Sentence " + t + "/" + n);
 
         SentencePair sp = sentences.get(t);
         SentencePairState sps = newSentencePairState(sp);
+        countSentence(sps, pos.numLeft-1);
+        batchEvent = nextBatchEvent(batchEvent, sps);
 
         // E-step
-        StopWatch.start("E-step");
+        long start = Timers.start();
         ExpAlign expAlign = sps.computeExpAlign();
-        logLikelihood += sps.logLikelihood();
-        StopWatch.accumStop("E-step");
+        pos.logLikelihood1 += sps.logLikelihood();
+        long time = Timers.stop("E-step", start, sps.length());
+        if(slow != null) slow.add(sp, sps.numStates(), time);
 
         if(Main.rantOutput) expAlign.dump();
 
         // M-step (partial)
-        StopWatch.start("M-step");
+        start = Timers.start();
         sps.updateNewParams(expAlign);
-        StopWatch.accumStop("M-step");
+        if(online != null) online.add(sp);
+        Timers.stop("M-step", start, sps.length());
 
       }
-      StopWatch.start("M-step");
-      newParams.finish(); // M-step (finish)
-      switchToNewParams();
-      StopWatch.accumStop("M-step");
+      if(batchEvent != null) batchEvent.end();
+      long start = Timers.start();
+      convergence.addLogLikelihood(pos.logLikelihood1);
+      flushCounts();
+      if(online != null)
+        online.checkpoint();
+      else {
+        newParams.finish(); // M-step (finish)
+        switchToNewParams();
+      }
+      Timers.stop("M-step (finish)", start);
 
-      logss("Log-likelihood = " + Fmt.D(logLikelihood));
+      logss("Log-likelihood = " + Fmt.D(pos.logLikelihood1));
       if(Main.rantOutput) params.dump(stdout, null, reverse);
+      Convergence.endIteration(iter-1, iterSentences);
+      if(slow != null) slow.finishIteration(iter-1);
+      checkpoint.afterIteration(pos);
 
       Record.end();
       end_track();
     }
+    evaluator.finishPendingTests();
+    Checkpoint.finishPendingWrite();
+    if(slow != null) slow.close();
+    online = null;
     Record.end();
 
     end_track();
   }
 
+  // E-step and partial M-step for the rest of the iteration, on Main.numThreads threads.
+  // Translation counts go into newParams through a ConcurrentCounts;
+  // the other counts are small, so threads take turns adding them.
+  private void parallelEStep(final List<SentencePair> sentences, Checkpoint.Position pos, final SlowSentences slow) {
+    final int n = sentences.size(), first = pos.t, size = pos.iterLeft;
+    final long numLeft = pos.numLeft;
+    final ConcurrentCounts counts = new ConcurrentCounts(newParams.transProbs);
+    final AtomicInteger next = new AtomicInteger(0);
+    int numThreads = Math.min(Main.numThreads, size);
+    logs("Computing expected counts of %d sentences on %d threads", size, numThreads);
+
+    long start = Timers.start();
+    FlightEvents.Event event = FlightEvents.begin("cross.EStep").sentences(size).info("parallel");
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+        ParallelDecoder.newDaemonThreadFactory("estep"));
+    try {
+      List<Future<Double>> futures = new ArrayList<Future<Double>>();
+      for(int k = 0; k < numThreads; k++) {
+        futures.add(executor.submit(new Callable<Double>() {
+          public Double call() {
+            double logLikelihood = 0;
+            int k;
+            while((k = next.getAndIncrement()) < size) {
+              SentencePair sp = sentences.get((first+k) % n);
+              SentencePairState sps = newSentencePairState(sp);
+              countSentence(sps, numLeft-k-1);
+              long start = Timers.start();
+              ExpAlign expAlign = sps.computeExpAlign();
+              logLikelihood += sps.logLikelihood();
+              long time = Timers.stop("E-step", start, sps.length());
+              if(slow != null) slow.add(sp, sps.numStates(), time);
+              // M-step (partial), with the count scatter timed inside it as in train()
+              long mStart = Timers.start();
+              start = Timers.start();
+              sps.updateTransProbs(expAlign, counts);
+              Timers.stop("count scatter", start);
+              synchronized(newParams) { sps.updateDistortionParams(expAlign); }
+              Timers.stop("M-step", mStart, sps.length());
+            }
+            return logLikelihood;
+          }
+        }));
+      }
+      for(Future<Double> future : futures)
+        pos.logLikelihood1 += ParallelDecoder.getResult(future);
+    } finally {
+      executor.shutdownNow();
+    }
+    counts.flush();
+    Timers.stop("parallel E-step", start);
+    event.end();
+
+    while(pos.iterLeft > 0) pos.next(n);
+  }
+
+  // Live throughput counters (see fig.exec.Metrics)
+  static void countSentence(SentencePairState sps, long numLeft) {
+    Metrics.incr("train_sentences_total", 1);
+    Metrics.incr("train_tokens_total", sps.I + sps.J);
+    Metrics.set("train_sentences_left", numLeft);
+  }
+
+  // Flight recorder events for the E-step (and partial M-step), one per
+  // jfrBatchSize sentences: add sps to event, or to a new one if it's full.
+  static FlightEvents.Event nextBatchEvent(FlightEvents.Event event, SentencePairState sps) {
+    if(event != null && event.numSentences() >= jfrBatchSize) {
+      event.end();
+      event = null;
+    }
+    if(event == null) event = FlightEvents.begin("cross.EStep");
+    return event.addSentence(sps.I + sps.J);
+  }
+
+  protected void initNewParams() {
+    super.initNewParams();
+    // newParams alternates between two tables with the same keys: keep the buffer
+    if(countBufferSize > 0 && countBuffer == null)
+      countBuffer = new SparseCounts(newParams.transProbs, countBufferSize);
+    else if(countBuffer != null)
+      countBuffer.rebind(newParams.transProbs);
+  }
+
+  // Add the buffered translation counts to newParams (call before reading it).
+  void flushCounts() {
+    if(countBuffer != null) countBuffer.flush();
+  }
+
   public static IntersectedWordAligner newIntersectedWordAligner(WordAligner wa1, WordAligner wa2) {
     IntersectedWordAligner intwa = new IntersectedWordAligner(wa1, wa2);
     if(usePosteriorDecoding)
@@ -177,34 +378,79 @@ public class EMWordAligner extends IterWordAligner {
   public static void jointTrain(EMWordAligner wa1, EMWordAligner wa2,
       List<SentencePair> sentences, int numIters, boolean merge) {
     track("jointTrain(): " + sentences.size() + " sentences; merge = " + merge);
+    sentences = SlowSentences.capCost(sentences, wa1, wa2);
+    SlowSentences slow = SlowSentences.create();
 
     IntersectedWordAligner intwa = newIntersectedWordAligner(wa1, wa2);
-    OutputOrderedMap<Integer, String> aerMap
-      = new OutputOrderedMap<Integer, String>(Execution.getFile(intwa.modelPrefix+".alignErrorRate"));
-
+    final OutputOrderedMap<Integer, String> aerMap
+      = new OutputOrderedMap<Integer, String>(Main.getFile(intwa.modelPrefix+".alignErrorRate"));
+    final Evaluator evaluator = wa1.evaluator;
+    final boolean async = asyncEval;
+
+    // See train() for online EM
+    int n = sentences.size();
+    int iterSize = onlineBatchSize > 0 ? OnlineEM.checkpointSize(n) : n;
+    Checkpoint.Position pos = new Checkpoint.Position((long)numIters * n);
+    if(onlineBatchSize > 0) numIters = (int)((pos.numLeft+iterSize-1) / iterSize);
     wa1.initTrain(numIters);
     wa2.initTrain(numIters);
+    if(onlineBatchSize > 0) {
+      wa1.online = new OnlineEM(wa1);
+      wa2.online = new OnlineEM(wa2);
+    }
+    Checkpoint checkpoint = new Checkpoint(new EMWordAligner[] { wa1, wa2 }, aerMap);
+    JointEStep jointEStep = new JointEStep(wa1, wa2);
+    String resumeFrom = Main.getResumeFrom();
+    if(resumeFrom != null) checkpoint.resume(resumeFrom, pos);
+    // Evaluate the two aligners and their combination together below,
+    // and only stop when both have converged
+    wa1.evaluateOnSwitch = wa2.evaluateOnSwitch = false;
+    wa1.stopOnConvergence = wa2.stopOnConvergence = false;
     Record.begin("train");
     while(!wa1.trainDone() && !wa2.trainDone()) {
       track("Iteration " + wa1.iter + "/" + numIters);
       Record.begin("iteration", wa1.iter);
 
-      wa1.initNewParams();
-      wa2.initNewParams();
+      if(pos.iterLeft == 0) { // Otherwise, we resumed in the middle of this iteration
+        wa1.initNewParams();
+        wa2.initNewParams();
+        pos.startIteration(iterSize);
+      }
+      Convergence.startIteration(wa1.iter, numIters);
+      int iterSentences = pos.iterLeft;
 
-      double logLikelihood1 = 0;
-      double logLikelihood2 = 0;
-      for(int t = 0; t < sentences.size(); t++) {
-        logs("Sentence " + t + "/" + sentences.size());
+      int numExactFallbacks = 0; // Sentences where branch and bound gave up
+      boolean agree = merge && (!mergeOnlyOnLastIteration || wa1.iter == numIters-1);
+      FlightEvents.Event batchEvent = null;
+      for(; pos.iterLeft > 0; pos.next(n)) {
+        checkpoint.beforeSentence(pos);
+        int t = pos.t;
+        if(wouldPrint()) logs("Sentence " + t + "/" + n);
 
         SentencePair sp = sentences.get(t);
         SentencePairState sps1 = wa1.newSentencePairState(sp);
         SentencePairState sps2 = wa2.newSentencePairState(sp);
+        countSentence(sps1, pos.numLeft-1);
+        batchEvent = nextBatchEvent(batchEvent, sps1);
+
+        if(!(exactJointExp && merge) && JointEStep.applies()) {
+          long time = jointEStep.process(sps1, sps2, agree, pos);
+          if(slow != null) slow.add(sp, sps1.numStates() + sps2.numStates(), time);
+          if(wa1.online != null) {
+            wa1.online.add(sp);
+            wa2.online.add(sp);
+          }
+          continue;
+        }
 
         ExpAlign expAlign1, expAlign2;
         if(exactJointExp && merge) {
           ComputeExactExpAlign c = new ComputeExactExpAlign(sps1, sps2);
+          long start = Timers.start();
           c.compute();
+          long time = Timers.stop("E-step", start, sps1.length());
+          if(slow != null) slow.add(sp, sps1.numStates() + sps2.numStates(), time);
+          if(c.usedMethod != exactJointMethod) numExactFallbacks++;
           expAlign1 = c.getExpAlign1();
           expAlign2 = c.getExpAlign2();
 
@@ -227,15 +473,15 @@ public class EMWordAligner extends IterWordAligner {
         }
         else {
           // E-step
-          StopWatch.start("E-step");
+          long start = Timers.start();
           expAlign1 = sps1.computeExpAlign();
           expAlign2 = sps2.computeExpAlign();
-          logLikelihood1 += sps1.logLikelihood();
-          logLikelihood2 += sps2.logLikelihood();
-          StopWatch.accumStop("E-step");
+          pos.logLikelihood1 += sps1.logLikelihood();
+          pos.logLikelihood2 += sps2.logLikelihood();
+          long time = Timers.stop("E-step", start, sps1.length());
+          if(slow != null) slow.add(sp, sps1.numStates() + sps2.numStates(), time);
 
-          //if(merge)
-          if(merge && (!mergeOnlyOnLastIteration || wa1.iter == numIters-1))
+          if(agree)
             expAlign1.merge(expAlign1, expAlign2);
         }
 
@@ -245,36 +491,89 @@ public class EMWordAligner extends IterWordAligner {
         }
 
         // M-step (partial)
-        StopWatch.start("M-step");
+        long start = Timers.start();
         sps1.updateNewParams(expAlign1);
         sps2.updateNewParams(expAlign2);
-        StopWatch.accumStop("M-step");
+        if(wa1.online != null) {
+          wa1.online.add(sp);
+          wa2.online.add(sp);
+        }
+        Timers.stop("M-step", start, sps1.length());
        
       }
+      if(batchEvent != null) batchEvent.end();
 
       // M-step (finish)
-      StopWatch.start("M-step");
-      wa1.newParams.finish();
-      wa2.newParams.finish();
-      wa1.switchToNewParams();
-      wa2.switchToNewParams();
-      StopWatch.accumStop("M-step");
-
-      logss("Log-likelihood 1 = " + Fmt.D(logLikelihood1));
-      logss("Log-likelihood 2 = " + Fmt.D(logLikelihood2));
-
-      // Evaluate joint model
-      double aer = wa1.evaluator.test(intwa, false, false).aer;
-      logss("AER 1+2 = " + Fmt.D(aer));
-      aerMap.put(wa1.iter-1, Fmt.D(wa1.aer) + " " + Fmt.D(wa1.aer) + " " + Fmt.D(aer));
-      Execution.putOutput("AER", Fmt.D(aer));
-      Record.add("aer1", wa1.aer);
-      Record.add("aer2", wa2.aer);
-      Record.add("aer", aer);
+      long start = Timers.start();
+      wa1.convergence.addLogLikelihood(pos.logLikelihood1);
+      wa2.convergence.addLogLikelihood(pos.logLikelihood2);
+      wa1.flushCounts();
+      wa2.flushCounts();
+      if(wa1.online != null) {
+        wa1.online.checkpoint();
+        wa2.online.checkpoint();
+      }
+      else {
+        wa1.newParams.finish();
+        wa2.newParams.finish();
+        wa1.switchToNewParams();
+        wa2.switchToNewParams();
+      }
+      Timers.stop("M-step (finish)", start);
+
+      logss("Log-likelihood 1 = " + Fmt.D(pos.logLikelihood1));
+      logss("Log-likelihood 2 = " + Fmt.D(pos.logLikelihood2));
+      if(numExactFallbacks > 0)
+        logss("Exact posteriors: used BANDED instead for %d/%d sentences", numExactFallbacks, n);
+      Convergence.endIteration(wa1.iter-1, iterSentences);
+      if(slow != null) slow.finishIteration(wa1.iter-1);
+
+      // Evaluate the two models and the joint model
+      // (iter has already been incremented by switchToNewParams())
+      final int evalIter = wa1.iter-1;
+      if(evalIter == numIters || (evalEvery > 0 && evalIter % evalEvery == 0)) {
+        final EMWordAligner ewa1 = async ? wa1.snapshot() : wa1;
+        final EMWordAligner ewa2 = async ? wa2.snapshot() : wa2;
+        final EMWordAligner twa1 = wa1, twa2 = wa2;
+        WordAligner eintwa = async ? newIntersectedWordAligner(ewa1, ewa2) : intwa;
+        evaluator.test(new WordAligner[] { ewa1, ewa2, eintwa }, async, new Evaluator.Listener() {
+          public void done(Performance[] perfs) {
+            twa1.aer = perfs[0].aer;
+            twa2.aer = perfs[1].aer;
+            double aer = perfs[2].aer;
+            twa1.aerMap.put(""+evalIter, ""+twa1.aer);
+            twa2.aerMap.put(""+evalIter, ""+twa2.aer);
+            twa1.convergence.addAER(twa1.aer);
+            twa2.convergence.addAER(twa2.aer);
+            logss("AER 1+2 (iteration %d) = %s", evalIter, Fmt.D(aer));
+            aerMap.put(evalIter, Fmt.D(twa1.aer) + " " + Fmt.D(twa1.aer) + " " + Fmt.D(aer));
+            Main.putOutput("AER", Fmt.D(aer));
+            if(async) Record.begin("evaluation", evalIter);
+            Record.add("aer1", twa1.aer);
+            Record.add("aer2", twa2.aer);
+            Record.add("aer", aer);
+            if(async) Record.end();
+          }
+        });
+      }
+      if(!wa1.trainDone() && !wa2.trainDone()) {
+        String reason1 = wa1.convergence.stopReason(wa1.iter-1);
+        String reason2 = wa2.convergence.stopReason(wa2.iter-1);
+        if(reason1 != null && reason2 != null) {
+          wa1.stop(reason1);
+          wa2.stop(reason2);
+        }
+      }
+      checkpoint.afterIteration(pos);
 
       Record.end();
       end_track();
     }
+    evaluator.finishPendingTests();
+    Checkpoint.finishPendingWrite();
+    if(slow != null) slow.close();
+    jointEStep.close();
+    wa1.online = wa2.online = null;
     Record.end();
 
     end_track();
@@ -282,7 +581,9 @@ public class EMWordAligner extends IterWordAligner {
 
   public Alignment alignSentencePair(SentencePair sp) {
     SentencePairState sps = newSentencePairState(sp);
-    if(usePosteriorDecoding)
+    if(usePosteriorDecoding && posteriorTopK > 0)
+      return sps.getSparsePosteriors(reverse, posteriorTopK, posteriorEpsilon, posteriorDecodingThreshold);
+    else if(usePosteriorDecoding)
       return Alignment.thresholdPosteriors(sps.getPosteriors(reverse), posteriorDecodingThreshold);
     else
       return sps.getViterbi(reverse);
@@ -2,6 +2,7 @@ package cross;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import fig.exec.*;
 import fig.basic.*;
@@ -16,7 +17,10 @@ public class Evaluator {
   }
 
   public Performance test(WordAligner wordAligner, boolean output, boolean evalPRTradeoff) {
+    // A background evaluation decodes with the posterior threshold we change below
+    finishPendingTests();
     track("Evaluator.test(" + wordAligner.getName() + ")");
+    FlightEvents.Event event = FlightEvents.begin("cross.Evaluate").info(wordAligner.getName());
 
     // Main computation: align sentences!
     Map<Integer, Alignment> proposedAlignments =
@@ -30,7 +34,7 @@ public class Evaluator {
       Record.setStruct("threshold", "precision", "recall", "aer");
       track("Eval precision/recall tradeoff");
       // Get an entire curve
-      OutputOrderedMap<Double, String> postMap = new OutputOrderedMap<Double, String>(Execution.getFile(wordAligner.modelPrefix+".PRTradeoff"));
+      OutputOrderedMap<Double, String> postMap = new OutputOrderedMap<Double, String>(Main.getFile(wordAligner.modelPrefix+".PRTradeoff"));
       int numIntervals = 100;
       for(int i = 0; i < numIntervals; i++) {
         double threshold = 1.0*i/numIntervals;
@@ -51,7 +55,7 @@ public class Evaluator {
 
     // Output alignments
     track("Output alignments");
-    String file = Execution.getFile(wordAligner.modelPrefix);
+    String file = Main.getFile(wordAligner.modelPrefix);
     if(output && file != null) {
       AlignmentsInfo ainfo = 
         new AlignmentsInfo(wordAligner.getName(), testSentencePairs, referenceAlignments, proposedAlignments);
@@ -80,10 +84,72 @@ public class Evaluator {
     perf.bestAER = bestAER;
     perf.dump();
 
+    addSentences(event).end();
     end_track();
     return perf;
   }
 
+  /**
+   * Called with the performance of each of the aligners passed to test().
+   * Always called from the thread that called test() or finishPendingTests().
+   */
+  public interface Listener {
+    public void done(Performance[] perfs);
+  }
+
+  /**
+   * Evaluate several aligners (without writing any output).
+   * If async, decode the test sentences in a background thread and return
+   * immediately; the aligners must not change until finishPendingTests()
+   * is called (for example, use a snapshot of an aligner that's training).
+   * Only one set of aligners can be pending at a time.
+   */
+  public void test(final WordAligner[] aligners, boolean async, Listener listener) {
+    finishPendingTests();
+    if(!async) {
+      Performance[] perfs = new Performance[aligners.length];
+      for(int a = 0; a < aligners.length; a++)
+        perfs[a] = test(aligners[a], false, false);
+      listener.done(perfs);
+      return;
+    }
+
+    if(executor == null)
+      executor = Executors.newSingleThreadExecutor(ParallelDecoder.newDaemonThreadFactory("evaluator"));
+    pendingAligners = aligners;
+    pendingListener = listener;
+    pendingPerfs = executor.submit(new Callable<Performance[]>() {
+      public Performance[] call() {
+        Performance[] perfs = new Performance[aligners.length];
+        for(int a = 0; a < aligners.length; a++) {
+          FlightEvents.Event event = FlightEvents.begin("cross.Evaluate").info(aligners[a].getName() + " [background]");
+          perfs[a] = eval(testSentencePairs, referenceAlignments,
+              aligners[a].alignSentencePairs(testSentencePairs, false));
+          addSentences(event).end();
+          perfs[a].bestAER = 2;
+          perfs[a].bestThreshold = -1;
+        }
+        return perfs;
+      }
+    });
+  }
+
+  // Wait for the background evaluation (if any) and report its results.
+  public void finishPendingTests() {
+    if(pendingPerfs == null) return;
+    Performance[] perfs = ParallelDecoder.getResult(pendingPerfs);
+    for(int a = 0; a < perfs.length; a++) {
+      track("Evaluator.test(" + pendingAligners[a].getName() + ") [background]");
+      perfs[a].dump();
+      end_track();
+    }
+    Listener listener = pendingListener;
+    pendingPerfs = null;
+    pendingAligners = null;
+    pendingListener = null;
+    listener.done(perfs);
+  }
+
   // Evaluate the proposed alignments against the reference alignments.
   public static Performance eval(List<SentencePair> testSentencePairs, Map<Integer, Alignment> referenceAlignments,
       Map<Integer, Alignment> proposedAlignments) {
@@ -125,7 +191,18 @@ public class Evaluator {
     return perf;
   }
 
+  private FlightEvents.Event addSentences(FlightEvents.Event event) {
+    for(SentencePair sp : testSentencePairs) event.addSentence(sp.I() + sp.J());
+    return event;
+  }
+
   List<SentencePair> testSentencePairs;
   Map<Integer, Alignment> referenceAlignments; // Gold alignments
   WordPairStats wpStats;
+
+  // Background evaluation
+  private ExecutorService executor;
+  private Future<Performance[]> pendingPerfs;
+  private WordAligner[] pendingAligners;
+  private Listener pendingListener;
 }
@@ -163,10 +163,12 @@ class Trellis {
 
   // alpha[j][state] = P(obs_0, ..., obs_{j-1}, state_j)
   // emissionWeights[j][state] = P(objs_j | state_j = state)
-  public double[][] computeForwardProbs(double[][] emissionWeights) {
-    int J = emissionWeights.length;
+  // Only the first J rows and numStates columns of the arrays are used
+  // (they might be bigger if they come from a TrellisWorkspace).
+  public double[][] computeForwardProbs(int J, double[][] emissionWeights, double[][] alpha) {
     int numStates = states.size();
-    double[][] alpha = new double[J][numStates];
+    for(int j = 0; j < J; j++)
+      Arrays.fill(alpha[j], 0, numStates, 0);
 
     for(int j = -1; j < J-1; j++) {
       // FOR TRANS
@@ -202,10 +204,10 @@ class Trellis {
 
   // beta[j][state] = P(obs_j, ..., obs_{J-1} | state_j)
   // emissionWeights[j][state] = P(objs_j | state_j = state)
-  public double[][] computeBackwardProbs(double[][] emissionWeights) {
-    int J = emissionWeights.length;
+  public double[][] computeBackwardProbs(int J, double[][] emissionWeights, double[][] beta) {
     int numStates = states.size();
-    double[][] beta = new double[J][numStates];
+    for(int j = 0; j < J; j++)
+      Arrays.fill(beta[j], 0, numStates, 0);
 
     // Compute backward probabilities
     for(int j = J-1; j >= 0; j--) {
@@ -259,7 +261,7 @@ class Trellis {
     }*/
 
     if(!NumUtils.isFinite(likelihood)) {
-      error("Bad likelihood: " + likelihood);
+      error("Bad likelihood: %s", likelihood);
       return 0;
     }
     return likelihood;
@@ -285,11 +287,10 @@ class Trellis {
   }
 
   // Return a list of states
-  public int[] computeViterbiPath(double[][] emissionWeights) {
+  public int[] computeViterbiPath(int J, double[][] emissionWeights) {
     // bestRecs[j][state] = (p, state2),
     // where p is the maximum probability of a state sequence that begins with
     // state at position j, state2 is the next state that we used to achieve p
-    int J = emissionWeights.length;
     int numStates = states.size();
     Rec[][] bestRecs = new Rec[J][numStates];
     Rec bestInitRec = new Rec(); // Best from initState
@@ -344,15 +345,24 @@ class Trellis {
 
 class TrellisOutput {
   Trellis trellis;
+  int J; // Length of the French sentence (the arrays might have more rows)
   double[][] emissionWeights;
   double[][] alpha, beta;
   double likelihood;
 
   public TrellisOutput(Trellis trellis, double[][] emissionWeights) {
+    this(trellis, emissionWeights.length, emissionWeights,
+        new double[emissionWeights.length][trellis.numStates()],
+        new double[emissionWeights.length][trellis.numStates()]);
+  }
+
+  // Fill in the given alpha and beta arrays (usually from a TrellisWorkspace).
+  public TrellisOutput(Trellis trellis, int J, double[][] emissionWeights, double[][] alpha, double[][] beta) {
     this.trellis = trellis;
+    this.J = J;
     this.emissionWeights = emissionWeights;
-    this.alpha = trellis.computeForwardProbs(emissionWeights);
-    this.beta = trellis.computeBackwardProbs(emissionWeights);
+    this.alpha = trellis.computeForwardProbs(J, emissionWeights, alpha);
+    this.beta = trellis.computeBackwardProbs(J, emissionWeights, beta);
     this.likelihood = trellis.computeLikelihood(alpha, beta);
   }
 
@@ -368,6 +378,35 @@ class TrellisOutput {
          * (j == -1 || j == J-1 ? 1 : emissionWeights[j][state1])
          / likelihood;
   }
+
+  // Fill table[0..J-1][0..I] with the alignment posteriors (I English words)
+  // table[j][i] = p(a_j = i,1) if i < I
+  // table[j][i] = p(a_j = *,0) if i == I
+  void fillExpAlign(int I, int J, double[][] table) {
+    int numStates = trellis.numStates();
+    for(int j = 0; j < J; j++) {
+      Arrays.fill(table[j], 0, I+1, 0);
+      for(int state = 0; state < numStates; state++) {
+        WAState stateObj = (WAState)trellis.states.getObject(state);
+
+        double posterior = getNodePosterior(j, state);
+        if(!(posterior <= 1 + 1e-10)) {
+          error("expAlign(j=%d, state=%s) = %f > 1", j, stateObj, posterior);
+          posterior = 0;
+        }
+        if(posterior == 0) continue;
+        if(stateObj.currAligned && stateObj.i == -1) {
+          error("Somehow j=%d aligned to %s: %f", j, stateObj, posterior);
+          continue;
+        }
+        //dbg("HMMExpAlign: j=%d,state=%s: %f", j, stateObj, posterior);
+        if(stateObj.currAligned)
+          table[j][stateObj.i] += posterior;
+        else
+          table[j][I] += posterior;
+      }
+    }
+  }
 }
 
 ////////////////////////////////////////////////////////////
@@ -378,6 +417,11 @@ class WATrellis extends Trellis {
   Params params;
   double nullProb; // Specific to this sentence length
   WAState.Factory factory;
+  // For each state, which column of the sentence's block of translation
+  // probabilities it emits from: i if aligned to English position i,
+  // I if unaligned (NULL), -1 if it can't emit anything
+  int[] emissionColumns;
+  double[][][] distortTables; // For each distortion group (see DistortProbTable.getTable())
 
   public WATrellis(WAState.Factory factory, int I, Params params) {
     this.factory = factory;
@@ -385,9 +429,16 @@ class WATrellis extends Trellis {
     this.params = params;
     this.nullProb = (EMWordAligner.nullProb == 1 ? 1.0/(I+1) : EMWordAligner.nullProb);
 
+    distortTables = new double[params.distortProbs.numStates()][][];
     createStates();
     initState = states.indexOf(factory.getInitState(I));
     finalState = states.indexOf(factory.getFinalState(I));
+    emissionColumns = new int[numStates()];
+    for(int state = 0; state < numStates(); state++) {
+      WAState stateObj = (WAState)states.getObject(state);
+      if(!stateObj.currAligned) emissionColumns[state] = I;
+      else emissionColumns[state] = stateObj.i >= 0 && stateObj.i < I ? stateObj.i : -1;
+    }
 
     // Allocate memory
     int numjz = factory.numjz();
@@ -455,7 +506,7 @@ class WATrellis extends Trellis {
   }
 
   public void updateTransitionProbs(TrellisOutput toutput, Params newParams) {
-    int J = toutput.emissionWeights.length;
+    int J = toutput.J;
     int numStates = numStates();
 
     // Update distortion probabilities
@@ -498,8 +549,10 @@ class WATrellis extends Trellis {
     }
     else {
       //return (1-nullProb) * 1.0/I; // Model 1
+      int group = state1.distortionGroup(jz);
+      if(distortTables[group] == null) distortTables[group] = params.distortProbs.getTable(group, I);
       return (1-nullProb) *
-        params.distortProbs.get(state1.distortionGroup(jz), state1.i, state2.i, I);
+        params.distortProbs.get(distortTables[group], group, state1.i, state2.i, I);
     }
   }
 }
@@ -548,6 +601,9 @@ public class HMMSentencePairState extends SentencePairState {
   WATrellis trellis;
   TrellisOutput toutput;
   HMMExpAlign expAlign; // Expected alignments (created after computeExpAlign())
+  // P(f_j | e_i) (i = I is NULL), gathered once and used by the E-step, Viterbi
+  // and posterior decoding of this sentence
+  double[][] transBlock;
   public static WAState.Factory factory = null;
 
   public enum StateType { NONE, HOMO, ENDS };
@@ -564,34 +620,39 @@ public class HMMSentencePairState extends SentencePairState {
     }
     public TrainingCache createCache() { return new HMMTrainingCache(); }
     public String getName() { return "HMM"; }
+    // The forward-backward goes through the transitions between the ~2(I+2) states for each j
+    public long cost(int I, int J) { long S = 2*(I+2); return J * S * S; }
   }
 
   public HMMSentencePairState(List<String> enWords, List<String> frWords, EMWordAligner wa) {
     super(enWords, frWords, wa);
-    this.trellis = ((HMMTrainingCache)wa.trainingCache).getTrellis(factory, I, wa.params);
+    HMMTrainingCache cache = (HMMTrainingCache)wa.trainingCache;
+    this.trellis = cache.getTrellis(factory, I, wa.params);
   }
 
-  // P(f_j | a_j = i,b)
-  // P(f_j | a_j = i,1) = P(f_j | e_i)
-  // P(f_j | a_j = i,0) = P(f_j | NULL)
-  double emissionProb(int j, WAState state) {
-    if(!state.currAligned) {
-      return wa.params.transProbs.getWithErrorMsg(wa.nullWord, fr(j), 0); // Generate from null
-    }
-    else {
-      if(state.i >= 0 && state.i < I)
-        return wa.params.transProbs.getWithErrorMsg(en(state.i), fr(j), 0); // Generate from English
-      else
-        return 0;
-    }
+  // Scratch arrays shared with the other sentences of the thread we're
+  // running on (not necessarily the one which created us: see JointEStep).
+  private TrellisWorkspace getWorkspace() {
+    return ((HMMTrainingCache)wa.trainingCache).getWorkspace();
   }
 
+  // Emission weights: P(f_j | a_j = i,b)
+  // P(f_j | a_j = i,1) = P(f_j | e_i)
+  // P(f_j | a_j = i,0) = P(f_j | NULL)
+  // The translation probabilities of the sentence are gathered once and
+  // spread over the states.
   double[][] computeEmissionWeights() {
+    if(transBlock == null) transBlock = gatherTransProbs(wa.params.transProbs);
     int numStates = trellis.numStates();
-    double[][] emissionWeights = new double[J][numStates];
-    for(int j = 0; j < J; j++)
+    int[] columns = trellis.emissionColumns;
+    TrellisWorkspace workspace = getWorkspace();
+    workspace.ensureCapacity(J, numStates);
+    double[][] emissionWeights = workspace.emissionWeights;
+    for(int j = 0; j < J; j++) {
+      double[] probs = transBlock[j], weights = emissionWeights[j];
       for(int state = 0; state < numStates; state++)
-        emissionWeights[j][state] = emissionProb(j, (WAState)trellis.states.getObject(state));
+        weights[state] = columns[state] == -1 ? 0 : probs[columns[state]];
+    }
     return emissionWeights;
   }
 
@@ -604,6 +665,8 @@ public class HMMSentencePairState extends SentencePairState {
     return emissionWeights;
   }
 
+  int numStates() { return trellis.numStates(); }
+
   public ExpAlign computeExpAlign() {
     if(Main.rantOutput) {
       TrellisOutput toutput = new TrellisOutput(trellis, sureEmissionWeights());
@@ -612,25 +675,36 @@ public class HMMSentencePairState extends SentencePairState {
       new HMMExpAlign(I, J, toutput).dump();
     }
 
-    toutput = new TrellisOutput(trellis, computeEmissionWeights());
+    runForwardBackward();
+    expAlign = new HMMExpAlign(I, J, toutput);
+    return expAlign;
+  }
+
+  public void computePosteriors(double[][] table) {
+    runForwardBackward();
+    toutput.fillExpAlign(I, J, table);
+  }
+
+  private void runForwardBackward() {
+    double[][] emissionWeights = computeEmissionWeights();
+    TrellisWorkspace workspace = getWorkspace();
+    long start = Timers.start();
+    toutput = new TrellisOutput(trellis, J, emissionWeights, workspace.alpha, workspace.beta);
+    Timers.stop("forward-backward", start, length());
     if(toutput.likelihood == 0) {
       error("Likelihood = 0 for sentence with length (%d,%d); to prevent underflow, set to 1 (ignores the sentence)", enWords.size(), frWords.size());
       toutput.likelihood = 1;
     }
     likelihood = toutput.likelihood;
     //logs("Likelihood = " + likelihood);
-
-    expAlign = new HMMExpAlign(I, J, toutput);
-    return expAlign;
   }
 
-  public void updateNewParams(ExpAlign expAlign) {
-    updateTransProbs(expAlign); // Translation
+  public void updateDistortionParams(ExpAlign expAlign) {
     trellis.updateTransitionProbs(toutput, wa.newParams); // Transition
   }
 
   public Alignment getViterbi(boolean reverse) {
-    int[] path = trellis.computeViterbiPath(computeEmissionWeights());
+    int[] path = trellis.computeViterbiPath(J, computeEmissionWeights());
 
     // Extract alignment from states
     Alignment alignment = new Alignment();
@@ -2,11 +2,21 @@ package cross;
 
 import java.util.*;
 
+import fig.exec.*;
+
+/**
+ * Trellises only depend on the length of the English sentence, so share them.
+ * Several threads might be decoding sentences at once, so the trellis cache
+ * is synchronized, and each thread gets its own scratch workspace.
+ */
 public class HMMTrainingCache extends TrainingCache {
-  public WATrellis getTrellis(WAState.Factory factory, int I, Params params) {
+  public synchronized WATrellis getTrellis(WAState.Factory factory, int I, Params params) {
     WATrellis trellis = trellisCache.get(I);
+    Metrics.incr(trellis == null ? "trellis_cache_misses_total" : "trellis_cache_hits_total", 1);
     if(trellis == null) {
+      FlightEvents.Event event = FlightEvents.begin("cross.BuildTrellis");
       trellis = new WATrellis(factory, I, params);
+      event.maxLength(I).end();
       // TODO: don't put it in the cache if I is too large?
       if(I <= 100)
         trellisCache.put(I, trellis);
@@ -14,7 +24,12 @@ public class HMMTrainingCache extends TrainingCache {
     return trellis;
   }
 
-  public void clear() { trellisCache.clear(); }
+  public TrellisWorkspace getWorkspace() { return workspaces.get(); }
+
+  public synchronized void clear() { trellisCache.clear(); }
 
   Map<Integer, WATrellis> trellisCache = new HashMap<Integer, WATrellis>();
+  ThreadLocal<TrellisWorkspace> workspaces = new ThreadLocal<TrellisWorkspace>() {
+    protected TrellisWorkspace initialValue() { return new TrellisWorkspace(); }
+  };
 }
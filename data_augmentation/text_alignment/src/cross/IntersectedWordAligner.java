@@ -36,6 +36,25 @@ public class IntersectedWordAligner extends WordAligner {
 
     if(!usePosteriorDecodingFlag)
       a3 = a1.intersect(a2);
+    else if(EMWordAligner.posteriorTopK > 0 && !EMWordAligner.exactJointExp) {
+      // The two alignments only have strengths for their candidate links,
+      // so only look at those
+      Set<Pair<Integer, Integer>> candidates = new HashSet<Pair<Integer, Integer>>(a1.strengths.keySet());
+      if(combineMethod == CombineMethod.multiply || combineMethod == CombineMethod.min) {
+        if(posteriorDecodingThreshold > 0) candidates.retainAll(a2.strengths.keySet()); // Otherwise, 0
+        else candidates.addAll(a2.strengths.keySet());
+      }
+      else
+        candidates.addAll(a2.strengths.keySet());
+      a3 = new Alignment();
+      for(Pair<Integer, Integer> ij : candidates) {
+        int i = ij.getFirst(), j = ij.getSecond();
+        double posterior = combine(a1.getStrength(i, j), a2.getStrength(i, j));
+        a3.setStrength(i, j, posterior);
+        if(posterior >= posteriorDecodingThreshold)
+          a3.addAlignment(i, j, true);
+      }
+    }
     else {
       // Do posterior decoding
       int I = sp.getEnglishWords().size();
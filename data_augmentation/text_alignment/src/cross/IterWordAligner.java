@@ -1,6 +1,8 @@
 package cross;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import fig.exec.*;
 import fig.basic.*;
@@ -17,6 +19,14 @@ public abstract class IterWordAligner extends WordAligner {
     public static double transParamsInitDiceThreshold = 0;
   @Option(gloss="Keep this many translation parameters per word")
     public static int numTransParamsPerWord = -1;*/
+  @Option(gloss="Evaluate on the test set every this many iterations (and always after the last one)")
+    public static int evalEvery = 1;
+  @Option(gloss="Evaluate on the test set in the background while the next iteration trains")
+    public static boolean asyncEval = false;
+  @Option(gloss="When saving the parameters, also write them as text (sorted, which is slow for big tables)")
+    public static boolean textParams = true;
+  @Option(gloss="Write the text parameters in the background while training goes on (e.g. with the next stage)")
+    public static boolean asyncTextParams = false;
 
   // Used to evaluate performance during training time
   Evaluator evaluator;
@@ -30,11 +40,35 @@ public abstract class IterWordAligner extends WordAligner {
   Params params, newParams;
   int iter, numIters;
   double aer;
+  // Whether switchToNewParams() evaluates this aligner
+  // (joint training evaluates the two aligners together instead)
+  boolean evaluateOnSwitch = true;
+  // Whether to stop training once this aligner has converged
+  // (joint training waits for both aligners)
+  boolean stopOnConvergence = true;
+  Convergence convergence;
 
   public abstract String getName();
 
+  // Return an aligner which uses the parameters of the last iteration and
+  // can decode in another thread while this one trains.
+  // Valid until those parameters are overwritten, which happens in
+  // initNewParams() after the next call to switchToNewParams()
+  // (or at the next checkpoint of online EM).
+  abstract IterWordAligner snapshot();
+
+  // Whether to evaluate after the current iteration.
+  boolean shouldEvaluate() {
+    return iter == numIters || (evalEvery > 0 && iter % evalEvery == 0);
+  }
+
   protected void initNewParams() {
+    // A checkpoint might still be writing out what's in newParams
+    Checkpoint.finishPendingWrite();
+    if(newParams != null) finishPendingDumps(newParams.transProbs);
     if(newParams == null) newParams = new Params(params);
+    if(EMWordAligner.offHeapParams) newParams.transProbs.moveOffHeap();
+    newParams.useDoubles(); // Was the parameters of the last iteration
     newParams.initZero();
   }
 
@@ -43,22 +77,97 @@ public abstract class IterWordAligner extends WordAligner {
    * Output files: <prefix>.bin, <prefix>.txt
    */
   void saveParams() {
-    String file = Execution.getFile(modelPrefix + ".params");
+    String file = Main.getFile(modelPrefix + ".params");
     if(file == null) return;
     track("saveParams(" + file + ")");
-    track("Text"); {
-      params.dump(file+".txt", evaluator.wpStats, reverse);
-      params.restrict(evaluator.testSentencePairs, reverse).dump(
-        file+"-test.txt", evaluator.wpStats, reverse);
-    } end_track();
+    if(textParams && asyncTextParams)
+      dumpInBackground(file);
+    else if(textParams) {
+      track("Text"); {
+        dump(params, file);
+      } end_track();
+    }
     track("Binary"); {
       params.save(file+".bin");
       params.restrict(evaluator.testSentencePairs, reverse).save(file+"-test.bin");
+      if(EMWordAligner.offHeapParams) {
+        // Translation table that can be mapped, distortions on their own
+        try {
+          params.transProbs.writeCSR(file+".csr");
+        } catch(IOException e) {
+          throw new RuntimeException(e);
+        }
+        IOUtils.writeObjFileHard(file+".distort.bin", params.distortProbs);
+      }
     } end_track();
     end_track();
   }
+
+  private void dump(Params params, String file) {
+    params.dump(file+".txt", evaluator.wpStats, reverse);
+    params.restrict(evaluator.testSentencePairs, reverse).dump(
+      file+"-test.txt", evaluator.wpStats, reverse);
+  }
+
+  // Text dumps being written in the background, and the translation tables they're writing
+  private static final ExecutorService dumpExecutor =
+    Executors.newSingleThreadExecutor(ParallelDecoder.newDaemonThreadFactory("dump"));
+  private static final List<Future<?>> pendingDumps = new ArrayList<Future<?>>();
+  private static final List<StrCondProbTable> dumpingTables = new ArrayList<StrCondProbTable>();
+
+  // The parameters stay as they are until the next initNewParams() (or
+  // until online EM starts changing them), which waits for the dump.
+  private void dumpInBackground(final String file) {
+    // A later stage replaces the distortions of params, so hold on to these
+    final Params dumped = new Params(params.name, reverse);
+    dumped.transProbs = params.transProbs;
+    dumped.distortProbs = params.distortProbs;
+    logs("Writing " + file + ".txt in the background");
+    synchronized(IterWordAligner.class) {
+      pendingDumps.add(dumpExecutor.submit(new Callable<Object>() {
+        public Object call() {
+          dump(dumped, file);
+          return null;
+        }
+      }));
+      dumpingTables.add(dumped.transProbs);
+    }
+  }
+
+  // Wait for the text dumps being written in the background: all of them
+  // if table is null, otherwise only if one of them is of table (which is
+  // about to change).
+  static synchronized void finishPendingDumps(StrCondProbTable table) {
+    if(pendingDumps.isEmpty()) return;
+    if(table != null && !dumpingTables.contains(table)) return;
+    track("Waiting for the text parameters to be written");
+    try {
+      for(Future<?> dump : pendingDumps)
+        ParallelDecoder.getResult(dump);
+    } finally {
+      pendingDumps.clear();
+      dumpingTables.clear();
+      end_track();
+    }
+  }
+
   void loadParams(String dir) {
     if(dir == null || dir.equals("")) return;
+    String csrFile = dir + "/" + modelPrefix + ".params.csr";
+    if(EMWordAligner.offHeapParams && new File(csrFile).exists()) {
+      track("loadParams(" + csrFile + ")");
+      params = new Params(getName(), reverse);
+      try {
+        params.transProbs = StrCondProbTable.mapCSR(csrFile);
+        params.distortProbs = (DistortProbTable)IOUtils.readObjFileHard(dir + "/" + modelPrefix + ".params.distort.bin");
+        logs("Mapped " + params);
+        end_track();
+        return;
+      } catch(Exception e) {
+        warning("Can't map %s (%s); loading the serialized parameters instead", csrFile, e);
+        end_track();
+      }
+    }
     String file = dir + "/" + modelPrefix + ".params.bin";
     track("loadParams(" + file + ")");
     params = Params.load(file);
@@ -98,11 +207,19 @@ public abstract class IterWordAligner extends WordAligner {
   void initTrain(int numIters) {
     params.name = getName();
 
-    aerMap    = new OutputOrderedMap<String, String>(Execution.getFile(modelPrefix+".alignErrorRate"));
-    changeMap = new OutputOrderedMap<String, String>(Execution.getFile(modelPrefix+".changeInParams"));
-    Execution.putOutput("Iterations", "0");
+    aerMap    = new OutputOrderedMap<String, String>(Main.getFile(modelPrefix+".alignErrorRate"));
+    changeMap = new OutputOrderedMap<String, String>(Main.getFile(modelPrefix+".changeInParams"));
+    Main.putOutput("Iterations", "0");
     this.numIters = numIters;
     this.iter = 1;
+    this.convergence = new Convergence();
+  }
+
+  // Stop training after the current iteration.
+  void stop(String reason) {
+    logss("%s: stopping after iteration %d: %s", getName(), iter-1, reason);
+    Main.putOutput("Converged", (iter-1) + ": " + reason);
+    numIters = iter-1;
   }
 
   boolean trainDone() {
@@ -110,36 +227,62 @@ public abstract class IterWordAligner extends WordAligner {
   }
 
   void switchToNewParams() {
-    // Change in parameters
-    StatFig changeFig = params.getDiff(newParams);
-    logss("Change in parameters: " + changeFig);
-    changeMap.put(""+iter, ""+changeFig);
-    Execution.putOutput("Change", changeFig.toString());
-    //Record.add("changeInParams", changeFig.mean());
+    // The current parameters are about to become newParams and get overwritten,
+    // so make sure we're done evaluating them.
+    evaluator.finishPendingTests();
+
+    BigStatFig changeFig = params.getDiff(newParams);
 
     // Switch the two
     Params tmpParams = params;
     params = newParams;
     newParams = tmpParams;
+    if(EMWordAligner.floatParams) params.useFloats();
     trainingCache.clear();
     //pruneParams();
     //pruneNumParams();
 
+    endIteration(changeFig);
+  }
+
+  // Bookkeeping once the parameters of an iteration are in place:
+  // record the change in parameters, evaluate and respond to input.map.
+  void endIteration(BigStatFig changeFig) {
+    // Change in parameters
+    logss("Change in parameters: " + changeFig);
+    changeMap.put(""+iter, ""+changeFig);
+    Main.putOutput("Change", changeFig.toString());
+    //Record.add("changeInParams", changeFig.mean());
+    convergence.setChange(changeFig);
+
     // Alignment error rate
-    aer = evaluator.test(this, false, false).aer;
-    logss("AER = %f", aer);
-    aerMap.put(""+iter, ""+aer);
-    Execution.putOutput("AER", Fmt.D(aer));
-    //Record.add("aer", aer);
+    if(evaluateOnSwitch && shouldEvaluate()) {
+      final int evalIter = iter;
+      WordAligner wa = asyncEval ? snapshot() : this;
+      evaluator.test(new WordAligner[] { wa }, asyncEval, new Evaluator.Listener() {
+        public void done(Performance[] perfs) {
+          aer = perfs[0].aer;
+          convergence.addAER(aer);
+          logss("AER (iteration %d) = %f", evalIter, aer);
+          aerMap.put(""+evalIter, ""+aer);
+          Main.putOutput("AER", Fmt.D(aer));
+          //Record.add("aer", aer);
+        }
+      });
+    }
 
     // Misc. input/output
-    Execution.putOutput("Iterations", ""+iter);
+    Main.putOutput("Iterations", ""+iter);
     if(Execution.getBooleanInput("save")) saveParams();
     if(Execution.getBooleanInput("eval")) evaluator.test(this, true, false);
     if(Execution.getBooleanInput("kill")) kill();
     printProgStatus();
 
     iter++;
+    if(stopOnConvergence && !trainDone()) {
+      String reason = convergence.stopReason(iter-1);
+      if(reason != null) stop(reason);
+    }
   }
 
   public void kill() {
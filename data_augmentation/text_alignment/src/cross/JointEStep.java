@@ -0,0 +1,139 @@
+package cross;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * The E-step and partial M-step of joint training (BOTH_JOINT) for one
+ * sentence, done in one go:
+ *  - the posteriors of both directions are written into two workspace
+ *    tables which are reused from sentence to sentence,
+ *  - the agreement product p = q1(a_j = i) q2(a_i = j) is computed once
+ *    per link and added up per pair of distinct words for both directions
+ *    (instead of merging two ExpAligns and then scattering each of them),
+ *    and the sums go to the count buffers of the aligners (see
+ *    SparseCounts), as in the other training paths.
+ * Only for the default merge (product of the posteriors, NULL left alone);
+ * see applies().
+ * For long sentences, the second direction's posteriors can be computed
+ * on another thread while we compute the first (an HMM sentence uses the
+ * trellis workspace of the thread running its forward-backward, so the
+ * two don't share one).  Call close() when done.
+ */
+class JointEStep {
+  private final EMWordAligner wa1, wa2;
+  private double[][] table1 = new double[0][0]; // [j][i], i = I is NULL
+  private double[][] table2 = new double[0][0]; // [i][j], j = J is NULL
+  private ExecutorService executor; // For the second direction (created if needed)
+
+  JointEStep(EMWordAligner wa1, EMWordAligner wa2) {
+    this.wa1 = wa1;
+    this.wa2 = wa2;
+  }
+
+  static boolean applies() {
+    return !EMWordAligner.mergeConsiderNull && !Main.useNormedObjective;
+  }
+
+  // Process sentence pair (sps1 is English -> French, sps2 is the reverse)
+  // and add the log-likelihoods to pos; return the time of the E-step.
+  // Posteriors are multiplied together if agree.
+  long process(final SentencePairState sps1, final SentencePairState sps2,
+      boolean agree, Checkpoint.Position pos) {
+    final int I = sps1.I, J = sps1.J;
+    table1 = ensureCapacity(table1, J, I+1);
+    table2 = ensureCapacity(table2, I, J+1);
+
+    // E-step
+    long start = Timers.start();
+    Future<?> future = null;
+    if(EMWordAligner.jointParallelMinSize > 0 && Main.numThreads > 1 &&
+       I*J >= EMWordAligner.jointParallelMinSize) {
+      if(executor == null)
+        executor = Executors.newSingleThreadExecutor(ParallelDecoder.newDaemonThreadFactory("joint"));
+      future = executor.submit(new Runnable() {
+        public void run() { sps2.computePosteriors(table2); }
+      });
+    }
+    sps1.computePosteriors(table1);
+    if(future != null) ParallelDecoder.getResult(future);
+    else sps2.computePosteriors(table2);
+    pos.logLikelihood1 += sps1.logLikelihood();
+    pos.logLikelihood2 += sps2.logLikelihood();
+    long time = Timers.stop("E-step", start, sps1.length());
+
+    ExpAlign expAlign1 = new Model1ExpAlign(table1, I, J);
+    ExpAlign expAlign2 = new Model1ExpAlign(table2, J, I);
+
+    // M-step (partial): translation counts of both directions in one pass,
+    // added up per pair of distinct words (sums1[en][fr], sums2[fr][en],
+    // NULL included as a row)
+    long mStart = Timers.start();
+    start = Timers.start();
+    List<String> enTypes1 = new ArrayList<String>(), frTypes1 = new ArrayList<String>();
+    List<String> enTypes2 = new ArrayList<String>(), frTypes2 = new ArrayList<String>();
+    int[] en1 = new int[I+1], fr1 = new int[J], en2 = new int[J+1], fr2 = new int[I];
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for(int i = 0; i <= I; i++) en1[i] = SentencePairState.typeId(ids, enTypes1, sps1.en(i));
+    ids.clear();
+    for(int j = 0; j < J; j++) fr1[j] = SentencePairState.typeId(ids, frTypes1, sps1.fr(j));
+    ids.clear();
+    for(int j = 0; j <= J; j++) en2[j] = SentencePairState.typeId(ids, enTypes2, sps2.en(j));
+    ids.clear();
+    for(int i = 0; i < I; i++) fr2[i] = SentencePairState.typeId(ids, frTypes2, sps2.fr(i));
+    double[][] sums1 = new double[enTypes1.size()][frTypes1.size()];
+    double[][] sums2 = new double[enTypes2.size()][frTypes2.size()];
+
+    for(int j = 0; j < J; j++) {
+      double[] row1 = table1[j];
+      int b1 = fr1[j];
+      double[] s2 = sums2[en2[j]];
+      for(int i = 0; i < I; i++) {
+        double p = row1[i];
+        if(agree) {
+          p *= table2[i][j];
+          row1[i] = table2[i][j] = p; // For the distortion counts
+        }
+        NumUtils.assertIsFinite(p);
+        sums1[en1[i]][b1] += p;
+        s2[fr2[i]] += agree ? p : table2[i][j];
+      }
+      NumUtils.assertIsFinite(row1[I]);
+      sums1[en1[I]][b1] += row1[I];
+    }
+    for(int i = 0; i < I; i++) {
+      NumUtils.assertIsFinite(table2[i][J]);
+      sums2[en2[J]][fr2[i]] += table2[i][J];
+    }
+    SentencePairState.addTransCounts(wa1, enTypes1, frTypes1, sums1);
+    SentencePairState.addTransCounts(wa2, enTypes2, frTypes2, sums2);
+    Timers.stop("count scatter", start);
+
+    if(Main.rantOutput) {
+      rant("=== expAlign1 ==="); expAlign1.dump();
+      rant("=== expAlign2 ==="); expAlign2.dump();
+    }
+
+    sps1.updateDistortionParams(expAlign1);
+    sps2.updateDistortionParams(expAlign2);
+    Timers.stop("M-step", mStart, sps1.length());
+    return time;
+  }
+
+  // Stop the thread for the second direction, if any.
+  void close() {
+    if(executor != null) executor.shutdown();
+    executor = null;
+  }
+
+  // Return table if it's at least m x n, otherwise a bigger one.
+  private static double[][] ensureCapacity(double[][] table, int m, int n) {
+    if(table.length >= m && (m == 0 || table[0].length >= n)) return table;
+    m = Math.max(m, table.length);
+    n = Math.max(n, table.length == 0 ? 0 : table[0].length);
+    return new double[m][n];
+  }
+}
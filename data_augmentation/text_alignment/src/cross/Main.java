@@ -47,8 +47,12 @@ public class Main {
   @Option(gloss="Whether to append _<i> to the ith occurence of a word in a sentence")
     public static boolean appendOccurToWord = false;
 
+  @Option(gloss="Models to train first, one after the other in this process (MODEL[:MODE], the mode defaulting to -mode); each starts from the parameters of the one before, and -model from those of the last one.  The files of each stage (-model included) go to a subdirectory named after its model, and its results in output.map start with that name (e.g. model1.AER).")
+    public static ArrayList<String> stages = new ArrayList<String>();
   @Option(gloss="Directory to load parameters from.")
     public static String loadParamsDir = "";
+  @Option(gloss="Continue training from this checkpoint (file or execution directory); use the same data and options.  With -stages, the execution directory: each stage continues from its checkpoint there (a finished stage just restores its final parameters), and stages without one start afresh")
+    public static String resumeFrom = "";
   @Option(gloss="File to write word pair statistics (for reading and writing).")
     public static String wpStatsFile = "";
   @Option(gloss="Whether to save parameters.")
@@ -68,6 +72,11 @@ public class Main {
     public static boolean condenseAlignOutput = false;
   @Option(gloss="Output a lot of junk")
     public static boolean rantOutput = false;
+
+  @Option(gloss="Number of threads to use for aligning sentences once the parameters are fixed")
+    public static int numThreads = 1;
+  @Option(gloss="When aligning on several threads, maximum number of aligned sentences to hold in memory")
+    public static int maxInFlight = 1000;
   // }
 
   public static void main(String[] args) {
@@ -75,6 +84,9 @@ public class Main {
     OptionsParser.register("em", EMWordAligner.class);
     OptionsParser.register("hmm", HMMSentencePairState.class);
     OptionsParser.register("iter", IterWordAligner.class);
+    OptionsParser.register("checkpoint", Checkpoint.class);
+    OptionsParser.register("convergence", Convergence.class);
+    OptionsParser.register("memory", MemoryPlan.class);
 
     Execution.init(args);
     try {
@@ -147,124 +159,240 @@ public class Main {
       Execution.linkFileFromExec("wpstats.bin", wpStatsFile);
     }
     else if(model == ModelType.MODEL1 || model == ModelType.MODEL2 || model == ModelType.HMM) {
-      // Decide which model to use
-      SentencePairState.Factory spsFactory = null;
-      if(model == ModelType.MODEL1)
-        spsFactory = new Model1SentencePairState.Factory();
-      else if(model == ModelType.MODEL2) {
-        spsFactory = new Model2SentencePairState.Factory();
-        DistortProbTable.setNumStates(1);
+      List<Stage> stageList = getStages();
+      // Plan for the biggest model (the last one), training whatever direction any stage trains
+      boolean b1 = false, b2 = false;
+      for(Stage stage : stageList) {
+        b1 |= stage.b1();
+        b2 |= stage.b2();
       }
-      else if(model == ModelType.HMM) {
-        spsFactory = new HMMSentencePairState.Factory();
-        HMMSentencePairState.setFactory(HMMSentencePairState.stateType);
-        DistortProbTable.setNumStates(HMMSentencePairState.factory.numDistortionGroups());
+      newFactory(model);
+      MemoryPlan.check(trainSentencePairs, testSentencePairs, wpStats, b1, b2);
+
+      EMWordAligner[] was = null;
+      for(int s = 0; s < stageList.size(); s++) {
+        Stage stage = stageList.get(s);
+        stageDir = stage.dir;
+        if(stageList.size() > 1) {
+          track("Stage %d/%d: %s (%s)", s+1, stageList.size(), stage.model, stage.mode);
+          String dir = Execution.getFile(stageDir);
+          if(dir != null) new File(dir).mkdir();
+        }
+        EMWordAligner[] prev = was;
+        was = new EMWordAligner[2];
+        theWordAligner = trainStage(stage, prev, was, trainSentencePairs, testSentencePairs, wpStats, evaluator);
+        if(stageList.size() > 1) end_track();
       }
+      IterWordAligner.finishPendingDumps(null);
+    }
 
-      EMWordAligner wa1 = new EMWordAligner(spsFactory, evaluator, false);
-      EMWordAligner wa2 = new EMWordAligner(spsFactory, evaluator, true);
+    //dumpAlignedWordsParams(testAlignments, testSentencePairs);
+  }
 
-      // Which models to train (1 normal vs. 2 reversed)
-      boolean b1, b2;
-      if(trainingMode == TrainingMode.BOTH_JOINT)
-        b1 = b2 = true;
-      else {
-        b1 = trainingMode != TrainingMode.REVERSE;
-        b2 = trainingMode != TrainingMode.NORMAL;
-      }
+  // Stages {
+  // A model to train (see stages).
+  static class Stage {
+    final ModelType model;
+    final TrainingMode mode;
+    String dir = ""; // Subdirectory of the execution directory for its files
 
-      // Initialize
-      if(b1) {
-        if(!loadParamsDir.equals("")) wa1.loadParams(loadParamsDir);
-        else wa1.initParams(wpStats);
-      }
-      if(b2) {
-        if(!loadParamsDir.equals("")) wa2.loadParams(loadParamsDir);
-        else wa2.initParams(wpStats);
-      }
+    Stage(ModelType model, TrainingMode mode) {
+      this.model = model;
+      this.mode = mode;
+    }
+
+    // Which models to train (1 normal vs. 2 reversed)
+    boolean b1() { return mode != TrainingMode.REVERSE; }
+    boolean b2() { return mode != TrainingMode.NORMAL; }
+  }
+
+  // Subdirectory of the execution directory for the files of the stage being trained
+  private static String stageDir = "";
+
+  // Path of a file of the stage being trained (in the execution directory).
+  static String getFile(String file) {
+    return Execution.getFile(stageDir.equals("") ? file : stageDir + "/" + file);
+  }
+
+  // Put a result of the stage being trained in the output map (with -stages,
+  // the key starts with the directory of the stage, e.g. model1.AER).
+  static void putOutput(String key, Object value) {
+    Execution.putOutput(stageDir.equals("") ? key : stageDir + "." + key, value);
+  }
 
-      // Train
-      if(trainingMode == TrainingMode.BOTH_INDEP) {
-        EMWordAligner.jointTrain(wa1, wa2, trainSentencePairs, numIters, false);
+  // Checkpoint (file or directory) to resume the stage being trained from, or null to start afresh.
+  static String getResumeFrom() {
+    if(resumeFrom.equals("")) return null;
+    if(stageDir.equals("")) return resumeFrom;
+    File file = new File(new File(resumeFrom, stageDir), Checkpoint.FILE);
+    return file.exists() ? file.toString() : null;
+  }
+
+  // The stages, then -model.
+  private static List<Stage> getStages() {
+    List<Stage> stageList = new ArrayList<Stage>();
+    for(String s : stages) {
+      String[] tokens = s.toUpperCase().split(":");
+      ModelType stageModel;
+      TrainingMode stageMode = trainingMode;
+      try {
+        stageModel = ModelType.valueOf(tokens[0]);
+        if(tokens.length > 1) stageMode = TrainingMode.valueOf(tokens[1]);
+      } catch(IllegalArgumentException e) {
+        throw new RuntimeException("Bad stage: '" + s + "' (should be MODEL[:MODE])");
       }
-      else if(trainingMode == TrainingMode.BOTH_JOINT) {
-        EMWordAligner.jointTrain(wa1, wa2, trainSentencePairs, numIters, true);
+      if(tokens.length > 2 || (stageModel != ModelType.MODEL1 && stageModel != ModelType.MODEL2 && stageModel != ModelType.HMM))
+        throw new RuntimeException("Bad stage: '" + s + "' (should be MODEL[:MODE], with MODEL1, MODEL2 or HMM)");
+      stageList.add(new Stage(stageModel, stageMode));
+    }
+    stageList.add(new Stage(model, trainingMode));
+    if(stageList.size() == 1) return stageList;
+
+    if(!resumeFrom.equals("") && !new File(resumeFrom).isDirectory())
+      throw new RuntimeException("With -stages, -resumeFrom must be an execution directory, not " + resumeFrom);
+    Set<String> dirs = new HashSet<String>();
+    for(Stage stage : stageList) {
+      String name = stage.model.toString().toLowerCase();
+      stage.dir = name;
+      for(int k = 2; !dirs.add(stage.dir); k++) stage.dir = name + "-" + k;
+    }
+    return stageList;
+  }
+
+  // Set things up for training model.
+  private static SentencePairState.Factory newFactory(ModelType model) {
+    if(model == ModelType.MODEL1) {
+      DistortProbTable.setNumStates(0);
+      return new Model1SentencePairState.Factory();
+    }
+    if(model == ModelType.MODEL2) {
+      DistortProbTable.setNumStates(1);
+      return new Model2SentencePairState.Factory();
+    }
+    HMMSentencePairState.setFactory(HMMSentencePairState.stateType);
+    DistortProbTable.setNumStates(HMMSentencePairState.factory.numDistortionGroups());
+    return new HMMSentencePairState.Factory();
+  }
+
+  // Train, test and save the model of stage, starting from the parameters
+  // of the aligners of the previous stage if there is one (prev), and put
+  // the aligners into was.  Return the one to use (both combined if we
+  // trained both).
+  private static WordAligner trainStage(Stage stage, EMWordAligner[] prev, EMWordAligner[] was,
+      List<SentencePair> trainSentencePairs, List<SentencePair> testSentencePairs,
+      WordPairStats wpStats, Evaluator evaluator) {
+    SentencePairState.Factory spsFactory = newFactory(stage.model);
+    TrainingMode trainingMode = stage.mode;
+    EMWordAligner wa1 = was[0] = new EMWordAligner(spsFactory, evaluator, false);
+    EMWordAligner wa2 = was[1] = new EMWordAligner(spsFactory, evaluator, true);
+    boolean b1 = stage.b1(), b2 = stage.b2();
+
+    // Initialize
+    if(b1) {
+      if(prev != null && prev[0].params != null) wa1.initParams(prev[0]);
+      else if(!loadParamsDir.equals("")) wa1.loadParams(loadParamsDir);
+      else wa1.initParams(wpStats);
+    }
+    if(b2) {
+      if(prev != null && prev[1].params != null) wa2.initParams(prev[1]);
+      else if(!loadParamsDir.equals("")) wa2.loadParams(loadParamsDir);
+      else wa2.initParams(wpStats);
+    }
+
+    // Train
+    if(trainingMode == TrainingMode.BOTH_INDEP) {
+      EMWordAligner.jointTrain(wa1, wa2, trainSentencePairs, numIters, false);
+    }
+    else if(trainingMode == TrainingMode.BOTH_JOINT) {
+      EMWordAligner.jointTrain(wa1, wa2, trainSentencePairs, numIters, true);
+    }
+    else {
+      if(b1) wa1.train(trainSentencePairs, numIters);
+      if(b2) wa2.train(trainSentencePairs, numIters);
+    }
+    IntersectedWordAligner intwa = EMWordAligner.newIntersectedWordAligner(wa1, wa2);
+    intwa.combineMethod = combineMethod;
+
+    // Test
+    if(testSentencePairs.size() > 0) {
+      if(outputTestPosteriors) {
+        track("Outputting test posteriors");
+        // Decode a lot of sentences
+        new File(getFile("testPosteriors")).mkdir();
+        TestPosteriorsWriter writer = new TestPosteriorsWriter();
+        ParallelDecoder.decode(testSentencePairs, newReturnAllDecoder(intwa), writer);
+        writer.close();
+        end_track();
       }
       else {
-        if(b1) wa1.train(trainSentencePairs, numIters);
-        if(b2) wa2.train(trainSentencePairs, numIters);
-      }
-      IntersectedWordAligner intwa = EMWordAligner.newIntersectedWordAligner(wa1, wa2);
-      intwa.combineMethod = combineMethod;
-
-      // Test
-      if(testSentencePairs.size() > 0) {
-        if(outputTestPosteriors) {
-          track("Outputting test posteriors");
-          // Decode a lot of sentences
-          PrintWriter out = null;
-          int sid = 0;
-          int numBlock = 0;
-          int numInBlock = 0;
-          new File(Execution.getFile("testPosteriors")).mkdir();
-          for(SentencePair sp : testSentencePairs) {
-            logs("Sentence %d/%d", sid, testSentencePairs.size());
-            if(out == null) {
-              out = IOUtils.openOutHard(Execution.getFile(String.format("testPosteriors/file%04d", numBlock)));
-              numBlock++;
-            }
-
-            List<Alignment> alignments = intwa.alignSentencePairReturnAll(sp);
-            for(int j = 0; j < sp.J(); j++) {
-              for(int i = 0; i < sp.I(); i++) {
-                double s0 = alignments.get(0).getStrength(i, j);
-                double s1 = alignments.get(1).getStrength(i, j);
-                double s2 = alignments.get(2).getStrength(i, j);
-                if(s0+s1+s2 > 1e-8)
-                  out.printf("%d %d %d %s %s %s\n", sid+1, i+1, j+1,
-                      Fmt.D(s0), Fmt.D(s1), Fmt.D(s2));
-              }
-            }
-            sid++;
-            numInBlock++;
-
-            if(numInBlock >= 200) {
-              out.close();
-              out = null;
-              numInBlock = 0;
-            }
-          }
-          if(out != null) out.close();
-          end_track();
-        }
-        else {
-          boolean evalPRTradeoff = EMWordAligner.usePosteriorDecoding; 
-          double aer = Double.NaN;
-          if(b1) aer = evaluator.test(wa1, saveAlignOutput, evalPRTradeoff).aer;
-          if(b2) aer = evaluator.test(wa2, saveAlignOutput, evalPRTradeoff).aer;
-          if(b1 && b2) {
-            Performance perf = evaluator.test(intwa, saveAlignOutput, evalPRTradeoff);
-            aer = perf.aer;
-            if(perf.hasBestAER()) Execution.putOutput("bestAER", Fmt.D(perf.bestAER));
-            Execution.putOutput("bestThreshold", Fmt.D(perf.bestThreshold));
-          }
-          Execution.putOutput("AER", Fmt.D(aer));
+        boolean evalPRTradeoff = EMWordAligner.usePosteriorDecoding; 
+        double aer = Double.NaN;
+        if(b1) aer = evaluator.test(wa1, saveAlignOutput, evalPRTradeoff).aer;
+        if(b2) aer = evaluator.test(wa2, saveAlignOutput, evalPRTradeoff).aer;
+        if(b1 && b2) {
+          Performance perf = evaluator.test(intwa, saveAlignOutput, evalPRTradeoff);
+          aer = perf.aer;
+          if(perf.hasBestAER()) putOutput("bestAER", Fmt.D(perf.bestAER));
+          putOutput("bestThreshold", Fmt.D(perf.bestThreshold));
         }
+        putOutput("AER", Fmt.D(aer));
+      }
+    }
+
+    writeIntUnionAlignments(trainSentencePairs, intwa);
+
+    // Save parameters
+    if(saveParams) {
+      if(b1) wa1.saveParams();
+      if(b2) wa2.saveParams();
+    }
+    if(!b2)      return wa1;
+    else if(!b1) return wa2;
+    else         return intwa;
+  }
+  // }
+
+  private static ParallelDecoder.Decoder<List<Alignment>> newReturnAllDecoder(final IntersectedWordAligner intwa) {
+    return new ParallelDecoder.Decoder<List<Alignment>>() {
+      public List<Alignment> decode(SentencePair sp) { return intwa.alignSentencePairReturnAll(sp); }
+    };
+  }
+
+  // Writes the posteriors of the two models and the combined model,
+  // 200 sentences per file.
+  private static class TestPosteriorsWriter implements ParallelDecoder.Receiver<List<Alignment>> {
+    PrintWriter out = null;
+    int numBlock = 0;
+    int numInBlock = 0;
+
+    public void receive(int sid, SentencePair sp, List<Alignment> alignments) {
+      if(out == null) {
+        out = IOUtils.openOutHard(getFile(String.format("testPosteriors/file%04d", numBlock)));
+        numBlock++;
       }
 
-      writeIntUnionAlignments(trainSentencePairs, intwa);
+      for(int j = 0; j < sp.J(); j++) {
+        for(int i = 0; i < sp.I(); i++) {
+          double s0 = alignments.get(0).getStrength(i, j);
+          double s1 = alignments.get(1).getStrength(i, j);
+          double s2 = alignments.get(2).getStrength(i, j);
+          if(s0+s1+s2 > 1e-8)
+            out.printf("%d %d %d %s %s %s\n", sid+1, i+1, j+1,
+                Fmt.D(s0), Fmt.D(s1), Fmt.D(s2));
+        }
+      }
+      numInBlock++;
 
-      // Save parameters
-      if(saveParams) {
-        if(b1) wa1.saveParams();
-        if(b2) wa2.saveParams();
+      if(numInBlock >= 200) {
+        out.close();
+        out = null;
+        numInBlock = 0;
       }
-      if(!b2)      theWordAligner = wa1;
-      else if(!b1) theWordAligner = wa2;
-      else         theWordAligner = intwa;
     }
 
-    //dumpAlignedWordsParams(testAlignments, testSentencePairs);
+    public void close() {
+      if(out != null) out.close();
+    }
   }
 
   // GIZA {
@@ -280,27 +408,30 @@ public class Main {
     if(!alignIntUnion) return;
     track("Writing intersect/union alignments on %d sentences", sentencePairs.size());
 
-    PrintWriter efOut = IOUtils.openOutHard(Execution.getFile("englishToFrench.giza"));
-    PrintWriter feOut = IOUtils.openOutHard(Execution.getFile("frenchToEnglish.giza"));
-
-    int idx = 0;
-    for(SentencePair sp : sentencePairs) {
-      logs("Sentence %d/%d", idx, sentencePairs.size());
-      idx++;
-      List<Alignment> a123 = intwa.alignSentencePairReturnAll(sp);
-      /*Alignment a1 = wa1.alignSentencePair(sp);
-      Alignment a2 = wa2.alignSentencePair(sp);
-      // Alignments that should appear in both
-      Alignment a3 = intwa.alignSentencePair(sp);*/
-      Alignment a1 = a123.get(0); // E->F
-      Alignment a2 = a123.get(1); // F->E
-      Alignment a3 = a123.get(2); // Combined
-      a3.writeGIZA(efOut, idx, sp);
-      a1.union(a2).union(a3).reverse().writeGIZA(feOut, idx, sp.reverse());
-    }
+    final FlightEvents.Event event = FlightEvents.begin("cross.WriteGiza");
+    final PrintWriter efOut = IOUtils.openOutHard(getFile("englishToFrench.giza"));
+    final PrintWriter feOut = IOUtils.openOutHard(getFile("frenchToEnglish.giza"));
+
+    ParallelDecoder.decode(sentencePairs, newReturnAllDecoder(intwa), new ParallelDecoder.Receiver<List<Alignment>>() {
+      public void receive(int idx, SentencePair sp, List<Alignment> a123) {
+        idx++; // GIZA sentences are 1-based
+        /*Alignment a1 = wa1.alignSentencePair(sp);
+        Alignment a2 = wa2.alignSentencePair(sp);
+        // Alignments that should appear in both
+        Alignment a3 = intwa.alignSentencePair(sp);*/
+        Alignment a1 = a123.get(0); // E->F
+        Alignment a2 = a123.get(1); // F->E
+        Alignment a3 = a123.get(2); // Combined
+        a3.writeGIZA(efOut, idx, sp);
+        a1.union(a2).union(a3).reverse().writeGIZA(feOut, idx, sp.reverse());
+        event.addSentence(sp.I() + sp.J());
+      }
+    });
 
     efOut.close();
     feOut.close();
+    event.bytes(new File(getFile("englishToFrench.giza")).length() +
+                new File(getFile("frenchToEnglish.giza")).length()).end();
 
     end_track();
   }
@@ -382,11 +513,20 @@ public class Main {
     }
   }
 
-  private static void readSentencePairsFromSource(String path,
+  static void readSentencePairsFromSource(String path,
       int offset, int maxSentencePairs,
       Interner<String> strdb, List<SentencePair> sentencePairs) {
     track("readSentencePairs(" + path + ")");
-    readSentencePairsUsingList(getBaseFileNamesFromSource(path), offset, maxSentencePairs, strdb, sentencePairs);
+    FlightEvents.Event event = FlightEvents.begin("cross.ReadCorpus");
+    List<String> baseFileNames = getBaseFileNamesFromSource(path);
+    int numBefore = sentencePairs.size();
+    readSentencePairsUsingList(baseFileNames, offset, maxSentencePairs, strdb, sentencePairs);
+    for(SentencePair sp : sentencePairs.subList(numBefore, sentencePairs.size()))
+      if(sp != null) event.addSentence(sp.I() + sp.J());
+    long bytes = 0;
+    for(String baseFileName : baseFileNames)
+      bytes += new File(baseFileName + "." + enExt).length() + new File(baseFileName + "." + frExt).length();
+    event.bytes(bytes).info(path).end();
   }
 
   private static void readSentencePairsUsingList(List<String> baseFileNames,
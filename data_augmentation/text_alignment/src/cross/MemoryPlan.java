@@ -0,0 +1,226 @@
+package cross;
+
+import java.util.*;
+
+import fig.basic.*;
+import fig.exec.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Projected heap use of a run, worked out from the corpus before any
+ * parameters are allocated, so that a run which would run out of memory
+ * hours later (typically when the second copy of the parameters is made)
+ * stops, or changes how it stores things, right at the start.
+ *
+ * The number of translation parameters is the number of distinct
+ * co-occurring word pairs, which we count approximately (with a
+ * HyperLogLog sketch) rather than by building the table.
+ * The bytes per entry are for a 64-bit JVM with compressed pointers;
+ * the estimate is meant to be within a factor of 2 or so, not exact.
+ */
+public class MemoryPlan {
+  public enum BudgetAction { WARN, REFUSE, ADAPT };
+
+  @Option(gloss="Heap budget in MB for the projected memory use (0 means the JVM's maximum heap)")
+    public static int memoryBudget = 0;
+  @Option(gloss="If the projected memory use is over budget: WARN, REFUSE to start, or ADAPT (floatParams, then sparse test posteriors, then offHeapParams)")
+    public static BudgetAction overBudget = BudgetAction.WARN;
+
+  // Bytes (roughly)
+  static final int OBJECT = 16, REF = 4;
+  static final int LIST = 40; // ArrayList and its array
+  static final int ROW = 128; // A StringDoubleMap with its arrays, and its entry in the table
+  static final int LINK = 96; // An entry of Alignment.strengths (HashMap entry, Pair, Double)
+
+  // What we know about the corpus
+  private long numTrain, numTrainTokens, numTest;
+  private long enVocab, frVocab, vocabChars;
+  private long numPairs; // Distinct (English, French) pairs in the training sentences
+  private long testLinks; // Sum of I*J over the test sentences
+  private long testTokens; // Sum of I+J over the test sentences
+  private final Set<Integer> enLengths = new HashSet<Integer>(), frLengths = new HashSet<Integer>();
+  private int maxLength;
+
+  private final boolean b1, b2, hasStats;
+  private final OrderedMap<String, Long> items = new OrderedMap<String, Long>();
+
+  MemoryPlan(List<SentencePair> train, List<SentencePair> test, WordPairStats wpStats, boolean b1, boolean b2) {
+    this.b1 = b1;
+    this.b2 = b2;
+    this.hasStats = wpStats != null && (Main.computeWpStats || !Main.wpStatsFile.equals(""));
+
+    Set<String> enWords = new HashSet<String>(), frWords = new HashSet<String>();
+    DistinctCounter pairs = new DistinctCounter();
+    for(SentencePair sp : train) {
+      if(sp == null) continue;
+      numTrain++;
+      numTrainTokens += sp.I() + sp.J();
+      enLengths.add(sp.I());
+      frLengths.add(sp.J());
+      maxLength = Math.max(maxLength, Math.max(sp.I(), sp.J()));
+      for(String e : sp.getEnglishWords())
+        if(enWords.add(e)) vocabChars += e.length();
+      for(String f : sp.getFrenchWords())
+        if(frWords.add(f)) vocabChars += f.length();
+      for(String e : sp.getEnglishWords()) {
+        int h = e.hashCode();
+        for(String f : sp.getFrenchWords())
+          pairs.add(h, f.hashCode());
+      }
+    }
+    for(SentencePair sp : test) {
+      if(sp == null) continue;
+      numTest++;
+      testLinks += (long)sp.I() * sp.J();
+      testTokens += sp.I() + sp.J();
+    }
+    enVocab = enWords.size();
+    frVocab = frWords.size();
+    numPairs = pairs.estimate();
+  }
+
+  // Work out the items and return the total.
+  long estimate() {
+    items.clear();
+    items.put("corpus", numTrain * (OBJECT + 2*LIST) + numTrainTokens * REF +
+        (enVocab + frVocab) * (48 + 2*OBJECT) + vocabChars +
+        numTest * (OBJECT + 2*LIST));
+    items.put("wpStats", (enVocab + frVocab) * (REF+8) + (hasStats ? (enVocab+1) * ROW + numPairs * (REF+8) : 0));
+
+    // Each direction has params and newParams; online EM keeps two more
+    // copies, and checkpoints within an iteration copy newParams.
+    // Copies share their keys, so only the first pays for them.
+    int numDirections = (b1 ? 1 : 0) + (b2 ? 1 : 0);
+    long entries = numPairs + frVocab; // Forward direction, with the NULL row (about the same in reverse)
+    long rows = enVocab + frVocab + 2;
+    boolean online = EMWordAligner.onlineBatchSize > 0;
+    int numDoubleCopies = 1 + (online ? 2 : 0) + (Checkpoint.checkpointSentences > 0 ? 1 : 0);
+    int valueBytes = EMWordAligner.offHeapParams ? 0 : 8;
+    int paramValueBytes = EMWordAligner.offHeapParams ? 0 : EMWordAligner.floatParams ? 4 : 8;
+    long perDirection = rows/2 * ROW * (1 + numDoubleCopies) + entries * REF +
+        entries * (paramValueBytes + (long)valueBytes * numDoubleCopies);
+    if(EMWordAligner.parallelEStep && Main.numThreads > 1) perDirection += entries * 8; // ConcurrentCounts
+    items.put("params", numDirections * perDirection);
+
+    // HMM: a trellis for each sentence length up to 100 (with the transitions
+    // between its ~2(I+2) states, for each jz), and the dense distortion tables
+    long trellises = 0;
+    if(Main.model == Main.ModelType.HMM && HMMSentencePairState.factory != null) {
+      int numjz = HMMSentencePairState.factory.numjz();
+      int numGroups = Math.max(1, DistortProbTable.numStates);
+      for(int d = 0; d < 2; d++) {
+        if(d == 0 ? !b1 : !b2) continue;
+        for(int I : d == 0 ? enLengths : frLengths) {
+          if(I > 100) continue;
+          long S = 2*(I+2);
+          trellises += numjz * (S*S * (4+8) + S * 2 * LIST) + numGroups * (long)(I+2)*(I+2) * 8;
+        }
+      }
+      long S = 2*(maxLength+2);
+      trellises += Math.max(1, Main.numThreads) * 3 * (maxLength+1) * S * 8; // Workspaces
+    }
+    items.put("trellises", trellises);
+
+    // Evaluation: the strengths of the test alignments of up to three aligners
+    int numAligners = b1 && b2 ? 3 : 1;
+    long links = EMWordAligner.posteriorTopK > 0 ? testTokens * EMWordAligner.posteriorTopK : testLinks;
+    items.put("evaluation", Main.condenseAlignOutput ? 0 : numAligners * links * LINK);
+
+    long total = 0;
+    for(String name : items.keys()) total += items.get(name);
+    return total;
+  }
+
+  // Report the projected memory use and deal with going over budget.
+  static void check(List<SentencePair> train, List<SentencePair> test, WordPairStats wpStats, boolean b1, boolean b2) {
+    track("Memory plan");
+    long budget = memoryBudget > 0 ? (long)memoryBudget << 20 : Runtime.getRuntime().maxMemory();
+    MemoryPlan plan = new MemoryPlan(train, test, wpStats, b1, b2);
+    logs("%d training sentences, %d/%d words, about %d word pairs", plan.numTrain, plan.enVocab, plan.frVocab, plan.numPairs);
+    long total = plan.estimate();
+    if(total > budget && overBudget == BudgetAction.ADAPT) total = plan.adapt(budget);
+    plan.report(total, budget);
+
+    if(total > budget) {
+      String message = String.format("Projected memory %s is over the budget of %s",
+          Fmt.bytesToString(total), Fmt.bytesToString(budget));
+      if(overBudget == BudgetAction.WARN) warning(message);
+      else throw new RuntimeException(message + " (see -memoryBudget and -overBudget)");
+    }
+    end_track();
+  }
+
+  // Change how things are stored until we fit in budget (or run out of options).
+  private long adapt(long budget) {
+    long total = estimate();
+    if(total > budget && !EMWordAligner.floatParams) {
+      EMWordAligner.floatParams = true;
+      total = estimate();
+      logs("Over budget: using -floatParams (now %s)", Fmt.bytesToString(total));
+    }
+    if(total > budget && EMWordAligner.usePosteriorDecoding && EMWordAligner.posteriorTopK == 0) {
+      EMWordAligner.posteriorTopK = 3;
+      total = estimate();
+      logs("Over budget: using -posteriorTopK 3 (now %s)", Fmt.bytesToString(total));
+    }
+    if(total > budget && !EMWordAligner.offHeapParams) {
+      EMWordAligner.offHeapParams = true;
+      total = estimate();
+      logs("Over budget: using -offHeapParams (now %s of heap; the values need %s of direct memory)",
+          Fmt.bytesToString(total), Fmt.bytesToString(offHeapBytes()));
+    }
+    return total;
+  }
+
+  private long offHeapBytes() {
+    int numDirections = (b1 ? 1 : 0) + (b2 ? 1 : 0);
+    return numDirections * 2L * (numPairs + frVocab) * 8;
+  }
+
+  private void report(long total, long budget) {
+    for(String name : items.keys()) {
+      logs("%s: %s", name, Fmt.bytesToString(items.get(name)));
+      Execution.putOutput("memory." + name, Fmt.bytesToString(items.get(name)));
+    }
+    logss("Projected memory: %s (budget %s)", Fmt.bytesToString(total), Fmt.bytesToString(budget));
+    Execution.putOutput("memory.total", Fmt.bytesToString(total));
+    Execution.putOutput("memory.budget", Fmt.bytesToString(budget));
+  }
+
+  // Approximate number of distinct pairs of hash codes added (HyperLogLog
+  // with 2^14 registers: about 1% error, 16K of memory).
+  static class DistinctCounter {
+    private static final int BITS = 14, M = 1 << BITS;
+    private final byte[] registers = new byte[M];
+
+    void add(int h1, int h2) {
+      long x = mix(((long)h1 << 32) ^ (h2 & 0xffffffffL));
+      int j = (int)(x >>> (64-BITS));
+      int rank = Long.numberOfLeadingZeros((x << BITS) | (1L << (BITS-1))) + 1;
+      if(rank > registers[j]) registers[j] = (byte)rank;
+    }
+
+    long estimate() {
+      double sum = 0;
+      int numZeros = 0;
+      for(byte r : registers) {
+        sum += Math.pow(2, -r);
+        if(r == 0) numZeros++;
+      }
+      double alpha = 0.7213 / (1 + 1.079 / M);
+      double e = alpha * M * M / sum;
+      if(e <= 2.5 * M && numZeros > 0) e = M * Math.log((double)M / numZeros); // Small range
+      return Math.round(e);
+    }
+
+    // The finalizer of MurmurHash3
+    private static long mix(long x) {
+      x ^= x >>> 33;
+      x *= 0xff51afd7ed558ccdL;
+      x ^= x >>> 33;
+      x *= 0xc4ceb9fe1a85ec53L;
+      x ^= x >>> 33;
+      return x;
+    }
+  }
+}
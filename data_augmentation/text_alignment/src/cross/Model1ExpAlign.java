@@ -8,13 +8,20 @@ import java.util.*;
 
 public class Model1ExpAlign extends ExpAlign {
   double[][] table;
+  private int I, J;
 
   Model1ExpAlign(double[][] table) {
+    this(table, table.length == 0 ? 0 : table[0].length-1, table.length);
+  }
+  // The table can be bigger than J x (I+1) (e.g., if it's a reused workspace).
+  Model1ExpAlign(double[][] table, int I, int J) {
     this.table = table;
+    this.I = I;
+    this.J = J;
   }
 
-  public int J() { return table.length; }
-  public int I() { return table[0].length-1; }
+  public int J() { return J; }
+  public int I() { return I; }
   public double get(int j, int i) { return table[j][i]; }
   static double combine(double a, double b) {
     if(Main.useNormedObjective) return a*b/(a*b+(1-a)*(1-b));
@@ -27,9 +34,10 @@ public class Model1ExpAlign extends ExpAlign {
     int I = table[0].length - 1;
     double[][] newTable = new double[J][I+1];
 
-    for(int i = 0; i < I; i++) {
-      for(int j = 0; j < J; j++)
-        newTable[j][i] = table[j][i] * revTable[i][j];
+    for(int j = 0; j < J; j++) {
+      double[] row = table[j], newRow = newTable[j];
+      for(int i = 0; i < I; i++)
+        newRow[i] = row[i] * revTable[i][j];
     }
 
     // For null, compute the probability that no English word i
@@ -54,6 +62,21 @@ public class Model1ExpAlign extends ExpAlign {
       ea1.table = newTable1;
       ea2.table = newTable2;
     }
+    else if(!Main.useNormedObjective) {
+      // Both tables get the same product, so compute it once and
+      // go along the rows of ea1
+      int J = ea1.J();
+      int I = ea1.I();
+      double[][] table2 = ea2.table;
+      for(int j = 0; j < J; j++) {
+        double[] row1 = ea1.table[j];
+        for(int i = 0; i < I; i++) {
+          double p = row1[i] * table2[i][j];
+          row1[i] = p;
+          table2[i][j] = p;
+        }
+      }
+    }
     else {
       int J = ea1.J();
       int I = ea1.I();
@@ -27,41 +27,15 @@ public class Model1SentencePairState extends SentencePairState {
   double alignProb(int j, int i) {
     return (i == I ? nullProb : (1-nullProb)/I);
   }
+  void getAlignProbs(int j, double[] probs) {
+    for(int i = 0; i <= I; i++)
+      probs[i] = alignProb(j, i);
+  }
 
   // Compute expected alignments for a particular sentence
   public ExpAlign computeExpAlign() {
     double[][] expAlign = new double[J][I+1];
-
-    likelihood = 1;
-    for(int j = 0; j < J; j++) {
-      // Compute P(a_j | f, e) \propto P(a_j, f | e) = P(a_j) P(f_j | e_{a_j})
-      String v = fr(j);
-      double sum = 0;
-      for(int i = 0; i <= I; i++) {
-        String u = en(i);
-        if(EMWordAligner.handleUnknownWords)
-          expAlign[j][i] = alignProb(j, i) * wa.params.transProbs.get(u, v, 0);
-        else
-          expAlign[j][i] = alignProb(j, i) * wa.params.transProbs.getSure(u, v);
-        sum += expAlign[j][i];
-      }
-
-      // Normalize
-      if(sum == 0) {
-        // Can't normalize, just zero everything instead of blowing up
-        for(int i = 0; i <= I; i++)
-          expAlign[j][i] = 0;
-        warning("Sum of expected counts = 0, can't normalize (I=%d,J=%d,j=%d)", I, J, j);
-      }
-      else {
-        for(int i = 0; i <= I; i++)
-          expAlign[j][i] /= sum;
-        likelihood *= sum;
-      }
-
-      //for(int i = 0; i <= I; i++)
-        //dbg("expAlign[%d:%s][%d:%s] = %f", j, fr(j), i, en(i), expAlign[j][i]);
-    }
+    computePosteriors(expAlign);
 
     // Doesn't work!  Probabilities are too coarse?
     /*if(wa.hardEM) {
@@ -83,13 +57,36 @@ public class Model1SentencePairState extends SentencePairState {
     return new Model1ExpAlign(expAlign);
   }
 
-  /**
-   * Update the word aligner's new translation parameters.
-   */
-  public void updateNewParams(ExpAlign expAlign) {
-    // Translation parameters
-    updateTransProbs(expAlign);
+  public void computePosteriors(double[][] expAlign) {
+    // Start with the translation probabilities and turn each row into posteriors in place
+    gatherTransProbs(wa.params.transProbs, expAlign);
+    double[] alignProbs = new double[I+1];
+    PosteriorKernel kernel = PosteriorKernel.kernel;
 
+    likelihood = 1;
+    for(int j = 0; j < J; j++) {
+      // Compute P(a_j | f, e) \propto P(a_j, f | e) = P(a_j) P(f_j | e_{a_j})
+      double[] row = expAlign[j];
+      getAlignProbs(j, alignProbs);
+      double sum = kernel.multiplyAndSum(row, alignProbs, I+1);
+
+      // Normalize
+      if(sum == 0) {
+        // Can't normalize, just zero everything instead of blowing up
+        Arrays.fill(row, 0, I+1, 0);
+        warning("Sum of expected counts = 0, can't normalize (I=%d,J=%d,j=%d)", I, J, j);
+      }
+      else {
+        kernel.divide(row, I+1, sum);
+        likelihood *= sum;
+      }
+
+      //for(int i = 0; i <= I; i++)
+        //dbg("expAlign[%d:%s][%d:%s] = %f", j, fr(j), i, en(i), expAlign[j][i]);
+    }
+  }
+
+  public void updateDistortionParams(ExpAlign expAlign) {
     // Distortion parameters: don't change
     wa.newParams.distortProbs.set(wa.params.distortProbs);
   }
@@ -129,18 +126,18 @@ public class Model1SentencePairState extends SentencePairState {
 
   public double getLikelihood(int[] pos) {
     double likelihood = 1;
-    for(int j = 0; j < J; j++) {
-      String v = fr(j);
-      // Compute P(a_j | f, e) \propto P(a_j, f | e) = P(a_j) P(f_j | e_{a_j})
-      int i = pos[j];
-      String u = en(i);
-      if(EMWordAligner.handleUnknownWords)
-        likelihood *= alignProb(j, i) * wa.params.transProbs.get(u, v, 0);
-      else
-        likelihood *= alignProb(j, i) * wa.params.transProbs.getSure(u, v);
-    }
+    for(int j = 0; j < J; j++)
+      likelihood *= linkWeight(j, pos[j]);
     return likelihood;
   }
 
+  // P(a_j = i, f_j | e) = P(a_j) P(f_j | e_{a_j})
+  public double linkWeight(int j, int i) {
+    if(EMWordAligner.handleUnknownWords)
+      return alignProb(j, i) * wa.params.transProbs.get(en(i), fr(j), 0);
+    else
+      return alignProb(j, i) * wa.params.transProbs.getSure(en(i), fr(j));
+  }
+
   double nullProb; // Specific to this sentence
 }
@@ -20,23 +20,19 @@ public class Model2SentencePairState extends Model1SentencePairState {
   // Return the diagonal in I
   int diag(int j) { return I*j/J; }
 
+  double[][] distortTable; // Distortion probabilities for this I (see DistortProbTable.getTable())
+
   // Return P(a_j = i | f, e)
   double alignProb(int j, int i) {
     if(i == I) return nullProb;
     else {
       int diagi = diag(j);
-      return (1-nullProb) * wa.params.distortProbs.get(0, i, diagi, I);
+      if(distortTable == null) distortTable = wa.params.distortProbs.getTable(0, I);
+      return (1-nullProb) * wa.params.distortProbs.get(distortTable, 0, i, diagi, I);
     }
   }
 
-  /**
-   * Update the word aligner's new translation parameters.
-   */
-  public void updateNewParams(ExpAlign expAlign) {
-    // Translation parameters
-    updateTransProbs(expAlign);
-
-    // Distortion parameters
+  public void updateDistortionParams(ExpAlign expAlign) {
     for(int j = 0; j < J; j++) {
       for(int i = 0; i < I; i++) {
         int diagi = diag(j);
@@ -0,0 +1,145 @@
+package cross;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Stepwise (online) EM for an EMWordAligner.
+ * Instead of re-estimating the parameters once per pass over the corpus,
+ * we re-estimate them after each mini-batch of onlineBatchSize sentences:
+ *   mu <- (1-eta_k) mu + eta_k s_k,  params = normalize(mu),
+ * where s_k are the expected counts of the k-th mini-batch (accumulated
+ * in newParams as usual) and eta_k = (k+onlineStepOffset)^-onlineStepExponent.
+ *
+ * Decaying all of mu after every mini-batch would touch every parameter,
+ * so we store mu = scale * stats instead: decaying mu only changes scale,
+ * and since normalizing a row doesn't depend on its scale, only the rows of
+ * English words which occur in the mini-batch need to be updated.
+ *
+ * The usual end-of-iteration bookkeeping (change in parameters, AER, ...)
+ * happens at checkpoints, every onlineCheckpointEvery mini-batches.
+ */
+class OnlineEM {
+  private final EMWordAligner wa;
+  private final Params stats;
+  private double scale = 1;
+  private int numBatches = 0; // Number of updates so far
+  private int batchSize = 0; // Number of sentences in the current mini-batch
+  private final Set<String> batchWords = new HashSet<String>(); // English words in the current mini-batch
+
+  // Parameters at the last checkpoint (to measure change and to evaluate)
+  Params checkpointParams;
+
+  OnlineEM(EMWordAligner wa) {
+    this.wa = wa;
+    IterWordAligner.finishPendingDumps(wa.params.transProbs); // We're about to change them
+    this.stats = new Params(wa.params);
+    this.checkpointParams = new Params(wa.params);
+    // The statistics are accumulators, so they stay in doubles
+    if(EMWordAligner.floatParams) wa.params.useFloats();
+  }
+
+  // Copy the state at the end of a mini-batch (for writing checkpoints
+  // while training goes on).
+  private OnlineEM(OnlineEM online) {
+    this.wa = online.wa;
+    this.stats = new Params(online.stats);
+    this.scale = online.scale;
+    this.numBatches = online.numBatches;
+    this.checkpointParams = online.checkpointParams; // Never modified
+  }
+  OnlineEM copy() {
+    assert atBatchBoundary();
+    return new OnlineEM(this);
+  }
+
+  boolean atBatchBoundary() { return batchSize == 0; }
+
+  void writeState(DataOutputStream out) throws IOException {
+    out.writeDouble(scale);
+    out.writeInt(numBatches);
+    stats.writeValues(out);
+    checkpointParams.writeValues(out);
+  }
+  void readState(DataInputStream in) throws IOException {
+    scale = in.readDouble();
+    numBatches = in.readInt();
+    stats.readValues(in);
+    checkpointParams.readValues(in);
+  }
+
+  // Number of sentences between checkpoints.
+  static int checkpointSize(int numSentences) {
+    if(EMWordAligner.onlineCheckpointEvery <= 0) return Math.max(1, numSentences);
+    long size = (long)EMWordAligner.onlineCheckpointEvery * EMWordAligner.onlineBatchSize;
+    return (int)Math.max(1, Math.min(size, numSentences));
+  }
+
+  // Call after sp's expected counts have been added to newParams.
+  void add(SentencePair sp) {
+    batchWords.addAll(wa.getEnWords(sp));
+    if(++batchSize >= EMWordAligner.onlineBatchSize) update();
+  }
+
+  // Fold the expected counts of the current mini-batch into the parameters.
+  void update() {
+    if(batchSize == 0) return;
+    wa.flushCounts();
+
+    double eta = Math.pow(numBatches + EMWordAligner.onlineStepOffset, -EMWordAligner.onlineStepExponent);
+    if(eta >= 1) { // Forget everything
+      stats.initZero();
+      scale = 1;
+    }
+    else
+      scale *= 1-eta;
+    double weight = eta / scale;
+
+    batchWords.add(wa.nullWord);
+    for(String u : batchWords) {
+      StringDoubleMap counts = wa.newParams.transProbs.getMap(u, false);
+      if(counts == null) continue; // Unknown word
+      StringDoubleMap mu = stats.transProbs.getMap(u, false);
+      StringDoubleMap probs = wa.params.transProbs.getMap(u, false);
+      mu.incrAll(counts, weight);
+      counts.putAll(0);
+      double sum = mu.sum();
+      if(!NumUtils.isFinite(1.0/sum)) continue; // Keep the old parameters
+      probs.putAll(mu);
+      probs.multAll(1.0/sum);
+    }
+
+    // Distortions are small, so just redo them
+    stats.distortProbs.incrAll(wa.newParams.distortProbs, weight);
+    wa.newParams.distortProbs.initZero();
+    wa.params.distortProbs.set(stats.distortProbs);
+    wa.params.distortProbs.normalize();
+
+    wa.trainingCache.clear();
+    batchWords.clear();
+    batchSize = 0;
+    numBatches++;
+
+    // Keep weight from overflowing
+    if(scale < 1e-100) {
+      for(StringDoubleMap mu : stats.transProbs.values()) mu.multAll(scale);
+      stats.distortProbs.multAll(scale);
+      scale = 1;
+    }
+  }
+
+  // Finish the current mini-batch and do the end-of-iteration bookkeeping.
+  void checkpoint() {
+    update();
+    logss("Online EM: %d updates, step size %s", numBatches,
+        Fmt.D(Math.pow(numBatches-1 + EMWordAligner.onlineStepOffset, -EMWordAligner.onlineStepExponent)));
+
+    // Background evaluation might still be using checkpointParams
+    wa.evaluator.finishPendingTests();
+    BigStatFig changeFig = checkpointParams.getDiff(wa.params);
+    checkpointParams = new Params(wa.params);
+    wa.endIteration(changeFig);
+  }
+}
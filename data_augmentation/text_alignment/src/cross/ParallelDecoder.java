@@ -0,0 +1,93 @@
+package cross;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Decodes a list of sentence pairs, possibly on several threads.
+ * Once the parameters are fixed, sentences can be decoded independently,
+ * so we hand them out to Main.numThreads threads.
+ * The results are passed to the Receiver in the original order of the
+ * sentences (so files come out the same as with one thread), and at most
+ * Main.maxInFlight results are held in memory at any time.
+ * The Receiver is always called from the calling thread.
+ */
+public class ParallelDecoder {
+  public interface Decoder<T> {
+    public T decode(SentencePair sp);
+  }
+  public interface Receiver<T> {
+    public void receive(int idx, SentencePair sp, T result);
+  }
+
+  public static <T> void decode(List<SentencePair> sentencePairs,
+      Decoder<T> decoder, Receiver<T> receiver) {
+    decode(sentencePairs, decoder, receiver, true);
+  }
+
+  // verbose: whether to log progress (only the training thread should log).
+  public static <T> void decode(List<SentencePair> sentencePairs,
+      Decoder<T> decoder, Receiver<T> receiver, boolean verbose) {
+    int n = sentencePairs.size();
+    int numThreads = Math.min(Main.numThreads, n);
+
+    if(numThreads <= 1) {
+      for(int idx = 0; idx < n; idx++) {
+        if(verbose) logs("Sentence %d/%d", idx, n);
+        SentencePair sp = sentencePairs.get(idx);
+        receiver.receive(idx, sp, decoder.decode(sp));
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads, daemonThreadFactory);
+    try {
+      // Futures for sentences [idx, nextIdx), in order
+      LinkedList<Future<T>> inFlight = new LinkedList<Future<T>>();
+      int maxInFlight = Math.max(Main.maxInFlight, numThreads);
+      int nextIdx = 0;
+      for(int idx = 0; idx < n; idx++) {
+        while(nextIdx < n && inFlight.size() < maxInFlight)
+          inFlight.add(executor.submit(newTask(decoder, sentencePairs.get(nextIdx++))));
+        if(verbose) logs("Sentence %d/%d", idx, n);
+        receiver.receive(idx, sentencePairs.get(idx), getResult(inFlight.removeFirst()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static <T> Callable<T> newTask(final Decoder<T> decoder, final SentencePair sp) {
+    return new Callable<T>() {
+      public T call() { return decoder.decode(sp); }
+    };
+  }
+
+  static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch(InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      Throwable t = e.getCause();
+      if(t instanceof RuntimeException) throw (RuntimeException)t;
+      if(t instanceof Error) throw (Error)t;
+      throw new RuntimeException(t);
+    }
+  }
+
+  // Don't let decoding threads keep the program alive.
+  static ThreadFactory newDaemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+  private static final ThreadFactory daemonThreadFactory = newDaemonThreadFactory("decoder");
+}
@@ -28,8 +28,10 @@ public class Params implements Serializable {
 
   // Called after the M-step
   public void finish() {
+    FlightEvents.Event event = FlightEvents.begin("cross.MStepFinish");
     transProbs.normalize();
     distortProbs.normalize();
+    event.info(name).end();
   }
 
   public void dump(String path, WordPairStats wpStats, boolean reverse) {
@@ -54,6 +56,17 @@ public class Params implements Serializable {
     return (Params)IOUtils.readObjFileHard(file);
   }
 
+  // Checkpoints only save the values: the structure comes from
+  // initializing the parameters the same way.
+  public void writeValues(DataOutputStream out) throws IOException {
+    transProbs.writeValues(out);
+    distortProbs.writeValues(out);
+  }
+  public void readValues(DataInputStream in) throws IOException {
+    transProbs.readValues(in);
+    distortProbs.readValues(in);
+  }
+
   public Params restrict(List<SentencePair> sentences, boolean reverse) {
     Params subParams = new Params(name, reverse);
     subParams.transProbs = transProbs.restrict(sentences, reverse);
@@ -61,6 +74,11 @@ public class Params implements Serializable {
     return subParams;
   }
 
+  // Store the translation probabilities as floats (or back as doubles).
+  // Distortions are small, so they stay in doubles.
+  public void useFloats() { transProbs.useFloats(); }
+  public void useDoubles() { transProbs.useDoubles(); }
+
   public void initZero() {
     transProbs.initZero();
     distortProbs.initZero();
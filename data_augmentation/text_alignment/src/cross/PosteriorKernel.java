@@ -0,0 +1,53 @@
+package cross;
+
+import static fig.basic.LogInfo.*;
+
+/**
+ * The arithmetic on a row of Model 1/2 posteriors (see
+ * Model1SentencePairState.computePosteriors).  This is the scalar version;
+ * with -vectorKernels, we use VectorPosteriorKernel (src-vector), which
+ * uses the Vector API.  That one only exists from Java 16 on (and needs
+ * java --add-modules jdk.incubator.vector), so it's compiled separately
+ * and loaded through reflection; if it's not there, we use this one.
+ *
+ * Only the row arithmetic has a kernel.  The agreement merge
+ * (Model1ExpAlign.merge) pairs row j of one table with column j of the
+ * other (separate row arrays), and the counts are added per word type into
+ * hash tables, so neither is a unit-stride loop over one array; and on the
+ * sample data the E-step time goes to those hash lookups, not to arithmetic.
+ */
+class PosteriorKernel {
+  // row[i] *= probs[i] for i < n; return the sum of the new row[i].
+  double multiplyAndSum(double[] row, double[] probs, int n) {
+    double sum = 0;
+    for(int i = 0; i < n; i++) {
+      row[i] = probs[i] * row[i];
+      sum += row[i];
+    }
+    return sum;
+  }
+
+  // row[i] /= sum for i < n.
+  void divide(double[] row, int n, double sum) {
+    for(int i = 0; i < n; i++)
+      row[i] /= sum;
+  }
+
+  // Made on first use (after the options are set).
+  static final PosteriorKernel kernel = create();
+
+  private static PosteriorKernel create() {
+    if(EMWordAligner.vectorKernels) {
+      try {
+        PosteriorKernel kernel = (PosteriorKernel)Class.forName("cross.VectorPosteriorKernel").newInstance();
+        logs("Using the Vector API for the posteriors");
+        return kernel;
+      } catch(Exception e) {
+        warning("Vector API kernel is not available (%s); using the scalar one", e);
+      } catch(LinkageError e) {
+        warning("Vector API kernel is not available (%s; run java with --add-modules jdk.incubator.vector); using the scalar one", e);
+      }
+    }
+    return new PosteriorKernel();
+  }
+}
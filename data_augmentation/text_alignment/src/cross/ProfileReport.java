@@ -0,0 +1,96 @@
+package cross;
+
+import java.io.*;
+import java.util.*;
+
+import fig.exec.*;
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Adds the AERs of a run (see crossProfile; one per stage with -stages)
+ * to its profile.json to make a report, and compares two reports:
+ *   java cross.ProfileReport -runDir out -outFile out/profile.json
+ *   java cross.ProfileReport -compare base.json new.json
+ * A run with -stages is profiled as a whole (its phases add up the stages).
+ * A time, allocation, GC or heap number which got worse by more than
+ * threshold (relatively) is a regression, as is any change in the AER or
+ * in the number of times a phase ran (which means the work changed, so
+ * the times can't be compared).  Allocation rates are only shown, since
+ * they go up when the same allocation takes less time.
+ */
+public class ProfileReport {
+  @Option(gloss="Execution directory of the run (with a profile.json)")
+    public static String runDir = null;
+  @Option(gloss="File to write the report to")
+    public static String outFile = null;
+  @Option(gloss="Compare the new report with this one")
+    public static String baseline = null;
+  @Option(gloss="Compare two reports (baseline, new) instead")
+    public static ArrayList<String> compare = new ArrayList<String>();
+  @Option(gloss="Relative increase that counts as a regression")
+    public static double threshold = 0.1;
+  @Option(gloss="Ignore differences in time of less than this many seconds")
+    public static double minSeconds = 0.05;
+  @Option(gloss="Ignore differences in memory of less than this many bytes")
+    public static double minBytes = 1<<20;
+
+  public static OrderedMap<String, Double> read(String dir) throws IOException {
+    OrderedMap<String, Double> report = Profiler.readJson(new File(dir, "profile.json").getPath());
+    OrderedStringMap output = OrderedStringMap.fromFile(new File(dir, "output.map"));
+    for(String key : output.keys()) // With -stages, one per stage (model1.AER, ...)
+      if(key.equals("AER") || key.endsWith(".AER"))
+        report.put(key, Double.parseDouble(output.get(key)));
+    return report;
+  }
+
+  // Log the differences and return the number of regressions.
+  public static int compare(OrderedMap<String, Double> base, OrderedMap<String, Double> report) {
+    track("Comparing (threshold %s)", Fmt.D(threshold));
+    int numRegressions = 0;
+    for(String key : report.keys()) {
+      if(!base.containsKey(key)) continue;
+      double x = base.get(key), y = report.get(key);
+      String problem = null;
+      if(key.equals("AER") || key.endsWith(".AER") || key.endsWith(".count")) {
+        if(Math.abs(x - y) > 1e-9) problem = "CHANGED";
+      }
+      else if(!key.endsWith("PerSecond") && y > x * (1 + threshold) && y - x >= minDifference(key))
+        problem = "REGRESSION";
+      String change = x == 0 ? "" : String.format(" (%+.1f%%)", 100 * (y - x) / x);
+      if(problem != null) numRegressions++;
+      logss("%s%s: %s -> %s%s", problem == null ? "" : problem + " ", key, Fmt.D(x), Fmt.D(y), change);
+    }
+    for(String key : base.keys())
+      if(!report.containsKey(key)) logss("%s: %s -> (missing)", key, Fmt.D(base.get(key)));
+    logss("%d regressions", numRegressions);
+    end_track();
+    return numRegressions;
+  }
+
+  private static double minDifference(String key) {
+    if(key.endsWith("Seconds") || key.endsWith(".seconds")) return minSeconds;
+    if(key.endsWith("Bytes")) return minBytes;
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionsParser.register("main", ProfileReport.class);
+    Execution.init(args);
+
+    int numRegressions = 0;
+    if(compare.size() == 2) {
+      numRegressions = compare(Profiler.readJson(compare.get(0)), Profiler.readJson(compare.get(1)));
+    }
+    else {
+      OrderedMap<String, Double> report = read(runDir);
+      if(outFile != null) Profiler.writeJson(report, outFile);
+      logs("Wrote %d numbers to %s", report.size(), outFile);
+      if(baseline != null) numRegressions = compare(Profiler.readJson(baseline), report);
+    }
+    Execution.putOutput("regressions", numRegressions);
+
+    if(numRegressions > 0) Execution.raiseException(new RuntimeException(numRegressions + " regressions"));
+    Execution.finish();
+  }
+}
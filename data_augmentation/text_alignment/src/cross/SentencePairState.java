@@ -12,6 +12,8 @@ public abstract class SentencePairState {
     public abstract SentencePairState create(List<String> enWords, List<String> frWords, EMWordAligner wa);
     public abstract TrainingCache createCache();
     public abstract String getName();
+    // Rough number of steps of the E-step of a sentence pair with these lengths
+    public long cost(int I, int J) { return (long)(I+1) * J; }
   }
 
   public SentencePairState(List<String> enWords, List<String> frWords, EMWordAligner wa) {
@@ -25,9 +27,28 @@ public abstract class SentencePairState {
 
   String en(int i) { return i == I ? wa.nullWord : enWords.get(i); }
   String fr(int j) { return frWords.get(j); }
+  int length() { return Math.max(I, J); } // For timing by sentence length
+  int numStates() { return I+1; } // Hidden states per French word
 
   public abstract ExpAlign computeExpAlign();
-  public abstract void updateNewParams(ExpAlign expAlign);
+
+  // Put P(a_j = i | f, e) in table[j][i] for j < J, i <= I (the table can be bigger).
+  // Subclasses can avoid allocating the ExpAlign.
+  public void computePosteriors(double[][] table) {
+    ExpAlign expAlign = computeExpAlign();
+    for(int j = 0; j < J; j++)
+      for(int i = 0; i <= I; i++)
+        table[j][i] = expAlign.get(j, i);
+  }
+
+  public void updateNewParams(ExpAlign expAlign) {
+    long start = Timers.start();
+    updateTransProbs(expAlign);
+    Timers.stop("count scatter", start);
+    updateDistortionParams(expAlign);
+  }
+  // Everything besides the translation parameters
+  public abstract void updateDistortionParams(ExpAlign expAlign);
 
   // Two types of decoding: posterior and viterbi
   public abstract Alignment getViterbi(boolean reverse);
@@ -44,24 +65,171 @@ public abstract class SentencePairState {
     return posteriors;
   }
 
+  // Posterior decoding which doesn't keep all I*J posteriors:
+  // for each French word j, only the (at most) k English words with the
+  // highest posteriors, if they're at least eps, are kept as strengths
+  // (along with any which reach threshold, which become alignments).
+  // If reverse, positions are swapped as in getPosteriors().
+  public Alignment getSparsePosteriors(boolean reverse, int k, double eps, double threshold) {
+    ExpAlign expAlign = computeExpAlign();
+    Alignment alignment = new Alignment();
+    k = Math.min(k, I);
+    int[] topI = new int[k];
+    double[] topP = new double[k];
+    for(int j = 0; j < J; j++) {
+      // Keep the best k in decreasing order of posterior
+      int n = 0;
+      for(int i = 0; i < I; i++) {
+        double p = expAlign.get(j, i);
+        if(p < eps && p < threshold) continue;
+        if(n == k && p <= topP[k-1]) {
+          if(p >= threshold) addLink(alignment, reverse, i, j, p, true);
+          continue;
+        }
+        if(n == k) { // Bump the worst one
+          n--;
+          if(topP[n] >= threshold) addLink(alignment, reverse, topI[n], j, topP[n], true);
+        }
+        int m = n++;
+        for(; m > 0 && topP[m-1] < p; m--) {
+          topI[m] = topI[m-1];
+          topP[m] = topP[m-1];
+        }
+        topI[m] = i;
+        topP[m] = p;
+      }
+      for(int m = 0; m < n; m++)
+        addLink(alignment, reverse, topI[m], j, topP[m], topP[m] >= threshold);
+    }
+    return alignment;
+  }
+  private static void addLink(Alignment alignment, boolean reverse, int i, int j, double p, boolean sure) {
+    int realI = reverse ? j : i, realJ = reverse ? i : j;
+    alignment.setStrength(realI, realJ, p);
+    if(sure) alignment.addAlignment(realI, realJ, true);
+  }
+
   // pos[j] = position i
   public double getLikelihood(int[] pos) {
     throw new UnsupportedOperationException();
   }
 
+  // For models whose likelihood factors over French positions:
+  // getLikelihood(pos) = \prod_j linkWeight(j, pos[j]) (i = I is NULL).
+  public double linkWeight(int j, int i) {
+    throw new UnsupportedOperationException();
+  }
+
   public double logLikelihood() { return Math.log(likelihood); }
 
   public void updateTransProbs(ExpAlign expAlign) {
+    if(wa.countBuffer != null) {
+      List<String> enTypes = new ArrayList<String>(), frTypes = new ArrayList<String>();
+      double[][] sums = sumTransCounts(expAlign, enTypes, frTypes);
+      addTransCounts(wa, enTypes, frTypes, sums);
+    }
+    else
+      updateTransProbs(expAlign, wa.newParams.transProbs);
+  }
+  // Add the counts of pairs of distinct words (see sumTransCounts()) to
+  // wa's new parameters, through its count buffer if it has one.
+  static void addTransCounts(EMWordAligner wa, List<String> enTypes, List<String> frTypes, double[][] sums) {
+    for(int a = 0; a < enTypes.size(); a++) {
+      if(wa.countBuffer != null)
+        wa.countBuffer.add(enTypes.get(a), frTypes, sums[a]);
+      else {
+        StringDoubleMap counts = wa.newParams.transProbs.getMap(enTypes.get(a), true);
+        for(int b = 0; b < frTypes.size(); b++)
+          counts.incr(frTypes.get(b), sums[a][b]);
+      }
+    }
+  }
+  // Add the expected counts to transCounts (laid out like the parameters).
+  void updateTransProbs(ExpAlign expAlign, StrCondProbTable transCounts) {
+    List<String> enTypes = new ArrayList<String>(), frTypes = new ArrayList<String>();
+    double[][] sums = sumTransCounts(expAlign, enTypes, frTypes);
+    for(int a = 0; a < enTypes.size(); a++) {
+      StringDoubleMap counts = transCounts.getMap(enTypes.get(a), true);
+      for(int b = 0; b < frTypes.size(); b++)
+        counts.incr(frTypes.get(b), sums[a][b]);
+    }
+  }
+
+  // Return the expected counts of each pair of distinct words (repeated words,
+  // e.g. function words, are added up here rather than in the big table):
+  // sums[a][b] is the count of (enTypes[a], frTypes[b]), NULL included.
+  double[][] sumTransCounts(ExpAlign expAlign, List<String> enTypes, List<String> frTypes) {
+    int[] enIds = new int[I+1], frIds = new int[J];
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for(int i = 0; i <= I; i++)
+      enIds[i] = typeId(ids, enTypes, en(i));
+    ids.clear();
+    for(int j = 0; j < J; j++)
+      frIds[j] = typeId(ids, frTypes, fr(j));
+
+    double[][] sums = new double[enTypes.size()][frTypes.size()];
+    boolean normed = Main.useNormedObjective;
     for(int j = 0; j < J; j++) {
-      String v = fr(j);
+      int b = frIds[j];
       for(int i = 0; i <= I; i++) {
-        String u = en(i);
         double p = expAlign.get(j, i);
         NumUtils.assertIsFinite(p);
-        if(Main.useNormedObjective) p /= I*J;
-        wa.newParams.transProbs.incr(u, v, p);
+        if(normed) p /= I*J;
+        sums[enIds[i]][b] += p;
+      }
+    }
+    return sums;
+  }
+  static int typeId(Map<String, Integer> ids, List<String> types, String word) {
+    Integer id = ids.get(word);
+    if(id == null) {
+      ids.put(word, id = types.size());
+      types.add(word);
+    }
+    return id;
+  }
+  // Same, but transCounts can be shared with other threads.
+  void updateTransProbs(ExpAlign expAlign, ConcurrentCounts transCounts) {
+    List<String> enTypes = new ArrayList<String>(), frTypes = new ArrayList<String>();
+    double[][] sums = sumTransCounts(expAlign, enTypes, frTypes);
+    for(int a = 0; a < enTypes.size(); a++) {
+      ConcurrentCounts.Row counts = transCounts.getRow(enTypes.get(a));
+      for(int b = 0; b < frTypes.size(); b++)
+        counts.incr(frTypes.get(b), sums[a][b]);
+    }
+  }
+
+  // Return block[j][i] = P(f_j | e_i) (i = I is NULL) under transProbs,
+  // looking up each English row once.  The models then only do arithmetic
+  // on dense rows.  Missing entries are 0 if handleUnknownWords.
+  double[][] gatherTransProbs(StrCondProbTable transProbs) {
+    return gatherTransProbs(transProbs, new double[J][I+1]);
+  }
+  // Fill in block[0..J-1][0..I].
+  // Each row is looked up once per distinct English word (and copied for repeats).
+  double[][] gatherTransProbs(StrCondProbTable transProbs, double[][] block) {
+    long start = Timers.start();
+    boolean handleUnknownWords = EMWordAligner.handleUnknownWords;
+    Map<String, Integer> firstPositions = new HashMap<String, Integer>();
+    for(int i = 0; i <= I; i++) {
+      String u = en(i);
+      Integer i0 = firstPositions.get(u);
+      if(i0 != null) {
+        for(int j = 0; j < J; j++) block[j][i] = block[j][i0];
+        continue;
+      }
+      firstPositions.put(u, i);
+      StringDoubleMap m = transProbs.getMap(u, false);
+      if(m == null) {
+        if(!handleUnknownWords) throw new RuntimeException("Missing key: " + u);
+        for(int j = 0; j < J; j++) block[j][i] = 0;
+        continue;
       }
+      for(int j = 0; j < J; j++)
+        block[j][i] = handleUnknownWords ? m.get(fr(j), 0) : m.getSure(fr(j));
     }
+    Timers.stop("emission gather", start);
+    return block;
   }
 
   List<String> enWords, frWords;
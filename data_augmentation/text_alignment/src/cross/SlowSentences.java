@@ -0,0 +1,127 @@
+package cross;
+
+import java.io.*;
+import java.util.*;
+
+import fig.exec.*;
+import fig.basic.*;
+import fig.basic.PriorityQueue;
+import static fig.basic.LogInfo.*;
+
+/**
+ * The slowest sentences of each training iteration (by E-step time), to
+ * find the pathological inputs (concatenated paragraphs, tables, ...).
+ * Kept in a min-heap of size slowSentences, and written at the end of
+ * each iteration to the slowSentences file in the execution directory,
+ * one line per sentence, slowest first:
+ *   iteration  E-step time (ns)  sentence ID  source file  I  J  states
+ * (states is the number of hidden states per French word, over both
+ * directions in joint training).
+ *
+ * Also limits the cost of the sentences to train on (see capCost()).
+ */
+class SlowSentences {
+  private static class Entry {
+    final SentencePair sp;
+    final int numStates;
+    final long nanos;
+    Entry(SentencePair sp, int numStates, long nanos) {
+      this.sp = sp;
+      this.numStates = numStates;
+      this.nanos = nanos;
+    }
+  }
+
+  private final int capacity;
+  private PriorityQueue<Entry> slowest = new PriorityQueue<Entry>(); // Priority is -nanos
+  private PrintWriter out;
+
+  SlowSentences(int capacity) {
+    this.capacity = capacity;
+  }
+
+  // Return null if we're not logging slow sentences.
+  static SlowSentences create() {
+    return EMWordAligner.slowSentences > 0 ? new SlowSentences(EMWordAligner.slowSentences) : null;
+  }
+
+  synchronized void add(SentencePair sp, int numStates, long nanos) {
+    if(slowest.size() == capacity && -slowest.getPriority() >= nanos) return;
+    slowest.add(new Entry(sp, numStates, nanos), -nanos);
+    if(slowest.size() > capacity) slowest.next(); // Drop the fastest
+  }
+
+  // Write out the slowest sentences of this iteration and start over.
+  synchronized void finishIteration(int iter) {
+    List<Entry> entries = new ArrayList<Entry>();
+    while(slowest.hasNext()) entries.add(slowest.next());
+    slowest = new PriorityQueue<Entry>();
+    if(entries.isEmpty()) return;
+    Collections.reverse(entries);
+
+    if(out == null) out = IOUtils.openOutEasy(Main.getFile("slowSentences"));
+    Entry e = entries.get(0);
+    logs("Slowest sentence: %d (%s), I = %d, J = %d: %s", e.sp.getSentenceID(), e.sp.getSourceFile(),
+        e.sp.I(), e.sp.J(), Timers.nanosToString(e.nanos));
+    if(out == null) return;
+    for(Entry entry : entries) {
+      out.println(iter + "\t" + entry.nanos + "\t" + entry.sp.getSentenceID() + "\t" +
+          entry.sp.getSourceFile() + "\t" + entry.sp.I() + "\t" + entry.sp.J() + "\t" + entry.numStates);
+    }
+    out.flush();
+  }
+
+  synchronized void close() {
+    if(out != null) out.close();
+    out = null;
+  }
+
+  ////////////////////////////////////////////////////////////
+
+  // Return the sentences to train on: those whose cost (for the given
+  // aligners, see SentencePairState.Factory.cost()) is over maxSentenceCost
+  // are skipped, or split into pieces along the diagonal which are under it.
+  static List<SentencePair> capCost(List<SentencePair> sentences, EMWordAligner... was) {
+    if(EMWordAligner.maxSentenceCost <= 0) return sentences;
+    List<SentencePair> result = new ArrayList<SentencePair>(sentences.size());
+    int numSkipped = 0, numSplit = 0;
+    for(SentencePair sp : sentences) {
+      if(cost(sp, was) <= EMWordAligner.maxSentenceCost) {
+        result.add(sp);
+        continue;
+      }
+      if(EMWordAligner.overCost == EMWordAligner.OverCostAction.SKIP) {
+        numSkipped++;
+        continue;
+      }
+      // Split into the fewest pieces which are all under the cap
+      int I = sp.I(), J = sp.J(), n = Math.max(I, J);
+      List<SentencePair> pieces = null;
+      for(int k = 2; k <= n && pieces == null; k++) {
+        pieces = new ArrayList<SentencePair>(k);
+        for(int p = 0; p < k && pieces != null; p++) {
+          SentencePair piece = sp.chop(p*I/k, (p+1)*I/k, p*J/k, (p+1)*J/k);
+          if(cost(piece, was) > EMWordAligner.maxSentenceCost) pieces = null;
+          else if(piece.I() > 0 && piece.J() > 0) pieces.add(piece);
+        }
+      }
+      if(pieces == null) numSkipped++; // Can't get it under the cap
+      else {
+        result.addAll(pieces);
+        numSplit++;
+      }
+    }
+    logss("Sentence cost over %s: split %d, skipped %d of %d sentences",
+        Fmt.D(EMWordAligner.maxSentenceCost), numSplit, numSkipped, sentences.size());
+    Main.putOutput("sentencesSplit", numSplit);
+    Main.putOutput("sentencesSkipped", numSkipped);
+    return result;
+  }
+
+  private static long cost(SentencePair sp, EMWordAligner[] was) {
+    long cost = 0;
+    for(EMWordAligner wa : was)
+      cost = Math.max(cost, wa.spsFactory.cost(wa.getEnWords(sp).size(), wa.getFrWords(sp).size()));
+    return cost;
+  }
+}
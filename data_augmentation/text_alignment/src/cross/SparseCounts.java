@@ -0,0 +1,126 @@
+package cross;
+
+import java.util.*;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * A buffer of expected translation counts on their way to a count table
+ * whose keys are locked (newParams during training).
+ * Sentences add (row, slot, count) entries, where row numbers the English
+ * words of the table and slot is the position of the French word in that
+ * row's StringDoubleMap (fixed once the keys are locked), so the string
+ * lookups happen once per distinct word pair of a sentence.
+ * When the buffer is full (or before anyone reads the table), the entries
+ * are sorted and applied in order, combining duplicates, so each row is
+ * visited once and its values from left to right.
+ * The buffer can be moved to another table with the same keys (training
+ * swaps params and newParams every iteration) with rebind().
+ */
+class SparseCounts {
+  private StrCondProbTable table;
+  private final Map<String, Integer> rowIds = new HashMap<String, Integer>();
+  private final StringDoubleMap[] rows;
+
+  // Entries: keys[k] = (row << 32) | slot
+  private final long[] keys;
+  private final double[] values;
+  private int size = 0;
+  private long numAdded = 0, numApplied = 0; // Entries added, entries left after combining
+
+  SparseCounts(StrCondProbTable table, int capacity) {
+    this.table = table;
+    this.rows = new StringDoubleMap[table.size()];
+    for(Map.Entry<String, StringDoubleMap> e : table) {
+      if(!e.getValue().isLocked()) throw new IllegalArgumentException("Keys must be locked");
+      rowIds.put(e.getKey(), rowIds.size());
+      rows[rowIds.size()-1] = e.getValue();
+    }
+    this.keys = new long[capacity];
+    this.values = new double[capacity];
+  }
+
+  // Send the entries to table from now on (it must have the same keys as
+  // the current one; flushes what's for the current one first).
+  void rebind(StrCondProbTable table) {
+    flush();
+    if(this.table == table) return;
+    if(table.size() != rows.length) throw new IllegalArgumentException("Different number of rows");
+    for(Map.Entry<String, StringDoubleMap> e : table) {
+      Integer row = rowIds.get(e.getKey());
+      if(row == null) throw new IllegalArgumentException("No row for " + e.getKey());
+      if(!e.getValue().isLocked()) throw new IllegalArgumentException("Keys must be locked");
+      rows[row] = e.getValue();
+    }
+    this.table = table;
+  }
+
+  // Add counts[b] for each French word v_b to the row of u.
+  void add(String u, List<String> vs, double[] counts) {
+    Integer row = rowIds.get(u);
+    if(row == null) throw new RuntimeException("Cannot make new entry for " + u + ", because map is locked");
+    StringDoubleMap map = rows[row];
+    if(size + vs.size() > keys.length) flush();
+    if(vs.size() > keys.length) { // Doesn't fit even in an empty buffer: add them directly
+      for(int b = 0; b < vs.size(); b++)
+        map.incrAt(slot(map, vs.get(b)), counts[b]);
+      numAdded += vs.size();
+      numApplied += vs.size();
+      return;
+    }
+    for(int b = 0; b < vs.size(); b++) {
+      keys[size] = ((long)row << 32) | slot(map, vs.get(b));
+      values[size] = counts[b];
+      size++;
+    }
+    numAdded += vs.size();
+  }
+  private static int slot(StringDoubleMap map, String v) {
+    int slot = map.indexOf(v);
+    if(slot == -1) throw new RuntimeException("Cannot make new entry for " + v + ", because map is locked");
+    return slot;
+  }
+
+  // Apply the entries to the table.
+  void flush() {
+    if(size == 0) return;
+    sort(0, size);
+    int k = 0;
+    while(k < size) {
+      long key = keys[k];
+      double sum = 0;
+      for(; k < size && keys[k] == key; k++) sum += values[k];
+      rows[(int)(key >>> 32)].incrAt((int)key, sum);
+      numApplied++;
+    }
+    size = 0;
+  }
+
+  String stats() {
+    return String.format("%d entries applied as %d", numAdded, numApplied);
+  }
+
+  // Sort keys[lo, hi) (and values along with them).
+  private void sort(int lo, int hi) {
+    while(hi - lo > 16) {
+      long pivot = keys[(lo + hi) >>> 1];
+      int i = lo, j = hi-1;
+      while(i <= j) {
+        while(keys[i] < pivot) i++;
+        while(keys[j] > pivot) j--;
+        if(i <= j) swap(i++, j--);
+      }
+      // Recurse on the smaller half
+      if(j - lo < hi - i) { sort(lo, j+1); lo = i; }
+      else { sort(i, hi); hi = j+1; }
+    }
+    for(int i = lo+1; i < hi; i++)
+      for(int j = i; j > lo && keys[j-1] > keys[j]; j--)
+        swap(j-1, j);
+  }
+  private void swap(int i, int j) {
+    long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+    double v = values[i]; values[i] = values[j]; values[j] = v;
+  }
+}
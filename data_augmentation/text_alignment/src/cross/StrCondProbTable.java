@@ -3,6 +3,8 @@ package cross;
 import fig.basic.*;
 import static fig.basic.LogInfo.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import fig.record.*;
 
@@ -26,6 +28,200 @@ public class StrCondProbTable extends String2DoubleMap {
     for(StringDoubleMap m : values())
       m.putAll(0);
   }
+  // See StringDoubleMap.useFloats()
+  public void useFloats() {
+    for(StringDoubleMap m : values()) m.useFloats();
+  }
+  public void useDoubles() {
+    for(StringDoubleMap m : values()) m.useDoubles();
+  }
+  // Memory used by the values
+  public long valueBytes() {
+    long bytes = 0;
+    for(StringDoubleMap m : values())
+      bytes += (long)m.capacity() * (m.usesFloats() ? 4 : 8);
+    return bytes;
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Off-heap storage (CSR)
+  // The values of all the rows can live outside the Java heap, in a
+  // compressed sparse row (CSR) layout: row r's values are entries
+  // [rowStart[r], rowStart[r+1]) of one big array of doubles, split into
+  // chunks of at most CHUNK_SIZE entries (no row straddles two chunks).
+  // Only the keys stay on the heap (and they're shared between the copies
+  // of the parameters), so the heap doesn't grow with the values, and the
+  // garbage collector never has to look at them.
+  // The M-step normalizes the values in place.
+  //
+  // The same layout on disk (writeCSR(), mapCSR()) is a saved model which
+  // can be memory-mapped as it is.  Words are replaced by vocabulary IDs:
+  //   int MAGIC, int CSR_VERSION, int numRows, int numCols, long numEntries
+  //   numCols French words, numRows English words (writeUTF)
+  //   (numRows+1) x long rowStart
+  //   numEntries x int column (the words of a row in the order of its keys)
+  //   padding to a multiple of 8 bytes
+  //   numEntries x double value
+  //   long offset of the values
+  // (all big-endian, as written by DataOutputStream).
+
+  static final int MAGIC = 0x43535254; // "CSRT"
+  static final int CSR_VERSION = 1;
+  static final int CHUNK_SIZE = 1<<27; // Entries (1GB)
+
+  // Move the values of the rows off the heap (rows that are already are left alone).
+  // The rows must be sorted lists with locked keys.
+  public void moveOffHeap() {
+    final List<StringDoubleMap> rows = new ArrayList<StringDoubleMap>();
+    for(StringDoubleMap m : values())
+      if(!m.usesBuffer()) rows.add(m);
+    forEachChunk(rowStart(rows), new ChunkHandler() {
+      public ByteBuffer allocate(long start, long size) {
+        return ByteBuffer.allocateDirect((int)(size*8)).order(ByteOrder.nativeOrder());
+      }
+      public void row(int r, DoubleBuffer values) { rows.get(r).useBuffer(values, true); }
+    });
+  }
+
+  public void writeCSR(String path) throws IOException {
+    List<String> rowWords = new ArrayList<String>(keySet());
+    List<StringDoubleMap> rows = new ArrayList<StringDoubleMap>();
+    Map<String, Integer> colIds = new HashMap<String, Integer>();
+    List<String> colWords = new ArrayList<String>();
+    for(String u : rowWords) {
+      StringDoubleMap m = getMap(u, false);
+      if(!m.isSortedList()) throw new IOException("Row " + u + " is not a sorted list");
+      rows.add(m);
+      for(String v : m.keySet())
+        if(!colIds.containsKey(v)) {
+          colIds.put(v, colWords.size());
+          colWords.add(v);
+        }
+    }
+    long[] rowStart = rowStart(rows);
+
+    FileOutputStream fileOut = new FileOutputStream(path);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1<<16));
+      out.writeInt(MAGIC);
+      out.writeInt(CSR_VERSION);
+      out.writeInt(rows.size());
+      out.writeInt(colWords.size());
+      out.writeLong(rowStart[rows.size()]);
+      for(String v : colWords) out.writeUTF(v);
+      for(String u : rowWords) out.writeUTF(u);
+      for(long start : rowStart) out.writeLong(start);
+      for(StringDoubleMap m : rows)
+        for(String v : m.keySet()) out.writeInt(colIds.get(v));
+      out.flush();
+      long offset = fileOut.getChannel().position();
+      for(; offset % 8 != 0; offset++) out.writeByte(0);
+      for(StringDoubleMap m : rows)
+        for(StringDoubleMap.Entry e : m) out.writeDouble(e.getValue());
+      out.writeLong(offset);
+      out.flush();
+    } finally {
+      fileOut.close();
+    }
+  }
+
+  // Return the table saved by writeCSR() in path, with the values mapped
+  // from the file (copy-on-write: changes don't go back to the file).
+  // A private mapping needs a writable file, so if it isn't, the values are
+  // read into direct buffers instead (still off the heap).
+  public static StrCondProbTable mapCSR(String path) throws IOException {
+    final boolean writable = new File(path).canWrite();
+    RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+    try {
+      file.seek(file.length()-8);
+      long valuesOffset = file.readLong();
+      file.seek(0);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file.getFD()), 1<<16));
+      if(in.readInt() != MAGIC) throw new IOException(path + " is not a translation table");
+      if(in.readInt() != CSR_VERSION) throw new IOException("Wrong version: " + path);
+      int numRows = in.readInt(), numCols = in.readInt();
+      in.readLong(); // Number of entries
+      String[] colWords = new String[numCols];
+      for(int c = 0; c < numCols; c++) colWords[c] = in.readUTF().intern();
+      final String[] rowWords = new String[numRows];
+      for(int r = 0; r < numRows; r++) rowWords[r] = in.readUTF().intern();
+      long[] rowStart = new long[numRows+1];
+      for(int r = 0; r <= numRows; r++) rowStart[r] = in.readLong();
+
+      // Keys (on the heap), then the values mapped from the file
+      final String[][] keys = new String[numRows][];
+      for(int r = 0; r < numRows; r++) {
+        keys[r] = new String[(int)(rowStart[r+1]-rowStart[r])];
+        for(int k = 0; k < keys[r].length; k++) keys[r][k] = colWords[in.readInt()];
+      }
+      final FileChannel channel = file.getChannel();
+      final long offset = valuesOffset;
+      final StrCondProbTable table = new StrCondProbTable();
+      forEachChunk(rowStart, new ChunkHandler() {
+        public ByteBuffer allocate(long start, long size) {
+          try {
+            if(writable)
+              return channel.map(FileChannel.MapMode.PRIVATE, offset + start*8, size*8);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int)(size*8));
+            while(buffer.hasRemaining())
+              if(channel.read(buffer, offset + start*8 + buffer.position()) < 0)
+                throw new EOFException();
+            buffer.rewind();
+            return buffer;
+          } catch(IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        public void row(int r, DoubleBuffer values) {
+          table.put(rowWords[r], StringDoubleMap.newLocked(keys[r], values));
+        }
+      });
+      table.lock();
+      return table;
+    } finally {
+      file.close();
+    }
+  }
+
+  private interface ChunkHandler {
+    // Buffer for the entries [start, start+size)
+    public ByteBuffer allocate(long start, long size);
+    // Called with the values of each row r
+    public void row(int r, DoubleBuffer values);
+  }
+
+  // rowStart[r] = number of entries in rows before r
+  private static long[] rowStart(List<StringDoubleMap> rows) {
+    long[] rowStart = new long[rows.size()+1];
+    for(int r = 0; r < rows.size(); r++)
+      rowStart[r+1] = rowStart[r] + rows.get(r).size();
+    return rowStart;
+  }
+
+  // Group the rows into chunks of at most CHUNK_SIZE entries (a bigger row
+  // gets a chunk of its own) and hand out the slice of each row.
+  private static void forEachChunk(long[] rowStart, ChunkHandler handler) {
+    int numRows = rowStart.length-1;
+    int r = 0;
+    while(r < numRows) {
+      int r2 = r+1;
+      while(r2 < numRows && rowStart[r2+1] - rowStart[r] <= CHUNK_SIZE) r2++;
+      ByteBuffer chunk = handler.allocate(rowStart[r], rowStart[r2] - rowStart[r]);
+      for(int q = r; q < r2; q++)
+        handler.row(q, slice(chunk, rowStart[q] - rowStart[r], (int)(rowStart[q+1] - rowStart[q])));
+      r = r2;
+    }
+  }
+
+  // Entries [start, start+size) of chunk
+  private static DoubleBuffer slice(ByteBuffer chunk, long start, int size) {
+    ByteBuffer b = chunk.duplicate().order(chunk.order());
+    b.position((int)(start*8));
+    b.limit((int)((start+size)*8));
+    return b.slice().order(chunk.order()).asDoubleBuffer();
+  }
+
   public void normalize() {
     for(Map.Entry<String, StringDoubleMap> e : entrySet()) {
       String s = e.getKey();
@@ -60,6 +256,39 @@ public class StrCondProbTable extends String2DoubleMap {
 
   protected String2DoubleMap newMap() { return new StrCondProbTable(); }
 
+  // Binary dump of the entries (for checkpoints).
+  public void writeValues(DataOutputStream out) throws IOException {
+    out.writeInt(size());
+    for(Map.Entry<String, StringDoubleMap> e : entrySet()) {
+      out.writeUTF(e.getKey());
+      StringDoubleMap m = e.getValue();
+      out.writeInt(m.size());
+      for(StringDoubleMap.Entry e2 : m) {
+        out.writeUTF(e2.getKey());
+        out.writeDouble(e2.getValue());
+      }
+    }
+  }
+  // Read what writeValues() wrote into a table with the same entries.
+  public void readValues(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if(n != size())
+      throw new IOException("Expected " + size() + " rows, but got " + n);
+    for(int r = 0; r < n; r++) {
+      String s = in.readUTF();
+      StringDoubleMap m = getMap(s, false);
+      if(m == null) throw new IOException("Unknown row: " + s);
+      int n2 = in.readInt();
+      if(n2 != m.size())
+        throw new IOException("Expected " + m.size() + " entries in row " + s + ", but got " + n2);
+      for(int k = 0; k < n2; k++) {
+        String t = in.readUTF();
+        if(!m.containsKey(t)) throw new IOException("Unknown entry: " + s + " " + t);
+        m.put(t, in.readDouble());
+      }
+    }
+  }
+
   public void dump(PrintWriter out) {
     FullStatFig entropyFig = new FullStatFig();
     FullStatFig numTranslationsFig = new FullStatFig();
@@ -137,4 +366,73 @@ public class StrCondProbTable extends String2DoubleMap {
     out.println("# sum = " + sumFig);
     out.println("# numTranslations = " + numTranslationsFig);
   }
+
+  ////////////////////////////////////////////////////////////
+  // Benchmark: E-step (Model 1 posteriors and Viterbi alignments) with the
+  // translation probabilities stored as doubles and as floats.
+  // Usage: java cross.StrCondProbTable -model MODEL1 -train <data> -loadParamsDir <dir>
+  // (To compare AERs, train with and without -floatParams.)
+
+  @Option(gloss="Number of passes over the corpus to time")
+    public static int benchmarkRepeats = 5;
+
+  public static void main(String[] args) {
+    OptionsParser.register("main", Main.class);
+    OptionsParser.register("em", EMWordAligner.class);
+    OptionsParser.register("table", StrCondProbTable.class);
+    fig.exec.Execution.init(args);
+
+    List<SentencePair> sentencePairs = new ArrayList<SentencePair>();
+    for(String source : Main.trainSources)
+      Main.readSentencePairsFromSource(source, 0, Main.maxTrainSentences, new Interner<String>(), sentencePairs);
+    EMWordAligner wa = new EMWordAligner(new Model1SentencePairState.Factory(), null, false);
+    wa.loadParams(Main.loadParamsDir);
+
+    List<double[][]> posteriors = new ArrayList<double[][]>();
+    List<Alignment> viterbis = new ArrayList<Alignment>();
+    for(boolean floats : new boolean[] { false, true }) {
+      String name = floats ? "float" : "double";
+      if(floats) wa.params.transProbs.useFloats();
+      long start = System.nanoTime();
+      double logLikelihood = 0;
+      for(int r = 0; r < benchmarkRepeats; r++) {
+        for(int k = 0; k < sentencePairs.size(); k++) {
+          SentencePairState sps = wa.newSentencePairState(sentencePairs.get(k));
+          double[][] table = new double[sps.J][sps.I+1];
+          sps.computePosteriors(table);
+          if(r == 0) logLikelihood += sps.logLikelihood();
+          if(r == 0 && !floats) posteriors.add(table);
+        }
+      }
+      long time = System.nanoTime() - start;
+
+      // Differences from double precision
+      double maxDiff = 0;
+      int numLinks = 0, numChanged = 0;
+      for(int k = 0; k < sentencePairs.size(); k++) {
+        SentencePairState sps = wa.newSentencePairState(sentencePairs.get(k));
+        double[][] table = new double[sps.J][sps.I+1];
+        sps.computePosteriors(table);
+        for(int j = 0; j < sps.J; j++)
+          for(int i = 0; i <= sps.I; i++)
+            maxDiff = Math.max(maxDiff, Math.abs(table[j][i] - posteriors.get(k)[j][i]));
+        Alignment viterbi = sps.getViterbi(false);
+        if(!floats) viterbis.add(viterbi);
+        else {
+          Alignment base = viterbis.get(k);
+          numLinks += base.sureAlignments.size();
+          numChanged += base.subtract(viterbi).sureAlignments.size() + viterbi.subtract(base).sureAlignments.size();
+        }
+      }
+
+      logss("%s: %ss, translation table %s, log-likelihood %s, max difference in posteriors %s, Viterbi links changed %d/%d",
+          name, Fmt.D(time/1e9), Fmt.bytesToString(wa.params.transProbs.valueBytes()),
+          Fmt.D(logLikelihood), Fmt.D(maxDiff), numChanged, numLinks);
+      fig.exec.Execution.putOutput(name + ".time", Fmt.D(time/1e9));
+      fig.exec.Execution.putOutput(name + ".maxDiff", Fmt.D(maxDiff));
+      fig.exec.Execution.putOutput(name + ".viterbiChanged", ""+numChanged);
+    }
+
+    fig.exec.Execution.finish();
+  }
 }
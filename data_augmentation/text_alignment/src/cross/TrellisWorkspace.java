@@ -0,0 +1,25 @@
+package cross;
+
+/**
+ * Scratch arrays for running forward-backward on one sentence at a time.
+ * The arrays only grow, so after a few sentences, decoding a sentence
+ * doesn't allocate J*numStates doubles three times over.
+ * A workspace must only be used by one thread, and the output of one sentence
+ * is overwritten by the next sentence that uses the workspace.
+ */
+class TrellisWorkspace {
+  double[][] emissionWeights = new double[0][0];
+  double[][] alpha = new double[0][0];
+  double[][] beta = new double[0][0];
+
+  public void ensureCapacity(int J, int numStates) {
+    emissionWeights = grow(emissionWeights, J, numStates);
+    alpha = grow(alpha, J, numStates);
+    beta = grow(beta, J, numStates);
+  }
+
+  private static double[][] grow(double[][] a, int J, int numStates) {
+    if(a.length >= J && (J == 0 || a[0].length >= numStates)) return a;
+    return new double[Math.max(J, a.length)][Math.max(numStates, a.length == 0 ? 0 : a[0].length)];
+  }
+}
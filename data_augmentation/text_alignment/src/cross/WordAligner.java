@@ -23,19 +23,29 @@ public abstract class WordAligner {
     Map<Integer, Alignment> alignments = alignSentencePairs(spList);
     return alignments.get(sp.sentenceID);
   }
+  // Sentences are aligned on Main.numThreads threads, so
+  // alignSentencePair() must not modify the state of the aligner.
   public Map<Integer, Alignment> alignSentencePairs(List<SentencePair> sentencePairs) {
-    track("alignSentencePairs(%d sentences)", sentencePairs.size());
-    Map<Integer, Alignment> alignments = new HashMap<Integer, Alignment>();
-    int idx = 0;
-    boolean condense = Main.condenseAlignOutput;
+    return alignSentencePairs(sentencePairs, true);
+  }
+  // verbose: whether to log (set to false when not called from the training thread).
+  public Map<Integer, Alignment> alignSentencePairs(List<SentencePair> sentencePairs, boolean verbose) {
+    if(verbose) track("alignSentencePairs(%d sentences)", sentencePairs.size());
+    final Map<Integer, Alignment> alignments = new HashMap<Integer, Alignment>();
+    final boolean condense = Main.condenseAlignOutput;
 
-    for(SentencePair sp : sentencePairs) {
-      logs("Sentence %d/%d", idx++, sentencePairs.size());
-      Alignment alignment = alignSentencePair(sp);
-      if(condense) alignment.condense();
-      alignments.put(sp.sentenceID, alignment);
-    }
-    end_track();
+    ParallelDecoder.decode(sentencePairs, new ParallelDecoder.Decoder<Alignment>() {
+      public Alignment decode(SentencePair sp) {
+        Alignment alignment = alignSentencePair(sp);
+        if(condense) alignment.condense();
+        return alignment;
+      }
+    }, new ParallelDecoder.Receiver<Alignment>() {
+      public void receive(int idx, SentencePair sp, Alignment alignment) {
+        alignments.put(sp.sentenceID, alignment);
+      }
+    }, verbose);
+    if(verbose) end_track();
     return alignments;
   }
 }
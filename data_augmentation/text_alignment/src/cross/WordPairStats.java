@@ -1,6 +1,7 @@
 package cross;
 
 import fig.basic.*;
+import fig.exec.*;
 import static fig.basic.LogInfo.*;
 import java.io.*;
 import java.util.*;
@@ -88,6 +89,7 @@ public class WordPairStats implements Serializable {
 
   public void computeStats(List<SentencePair> sentencePairs) {
     track("WordPairStats.computeStats(): " + sentencePairs.size() + " sentences");
+    FlightEvents.Event event = FlightEvents.begin("cross.WordPairStats");
 
     allocateForSentencePairs(enCounts, false);
     allocateForSentencePairs(frCounts, true);
@@ -107,7 +109,9 @@ public class WordPairStats implements Serializable {
       for(String en : enHist.keySet())
         for(String fr : frHist.keySet())
           counts.incr(en, fr, Math.min(enHist.get(en), frHist.get(fr)));
+      event.addSentence(enWords.size() + frWords.size());
     }
+    event.end();
     end_track();
   }
 
@@ -2,12 +2,23 @@ package fig.basic;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The logging output has a tree structure, where each node is a
  * line of output, and the depth of a node is its indent level.
  * A run is the sequence of children of some node.
  * A subset of the lines in the run will get printed.
+ * Output is meant to come from one thread; the basic output methods are
+ * synchronized so that other threads can safely report errors.
+ *
+ * Formatting is lazy: logs(format, args) only formats (and logs(o) only
+ * calls o.toString()) if the line is printed.  In hot loops, use
+ *   if(wouldPrint()) logs("Sentence " + t);
+ * to skip building the line altogether.
+ * The errors and warnings from each format string are printed at most
+ * maxRepeats times per track; the rest are counted and summarized when the
+ * track ends.
  */
 public class LogInfo {
   public static void track(String format, Object... args) {
@@ -16,7 +27,7 @@ public class LogInfo {
   public static void track(Object o) {
     track(o, false);
   }
-  public static void track(Object o, boolean printAllLines) {
+  public synchronized static void track(Object o, boolean printAllLines) {
     if(indWithin()) {
       if(thisRun().shouldPrint()) {
         print(o);
@@ -37,7 +48,8 @@ public class LogInfo {
   // Convenient way to end and return a value
   public static <T> T end_track(T x) { end_track(); return x; }
 
-  public static void end_track() {
+  public synchronized static void end_track() {
+    printRepeatSummary();
     indLevel--;
 
     if(stoppedIndLevel == indLevel) {
@@ -76,53 +88,86 @@ public class LogInfo {
     }
   }
 
-  public static void logs(String format, Object... args) {
-    logs(String.format(format, args));
+  public synchronized static void logs(String format, Object... args) {
+    if(lineCounted()) printLines(String.format(format, args));
   }
-  public static void logs(Object o) {
-    if(indWithin() && thisRun().newLine())
-      printLines(o);
+  public synchronized static void logs(Object o) {
+    if(lineCounted()) printLines(o);
   }
-  public static void logss(String format, Object... args) {
-    logss(String.format(format, args));
+  // Count the next line of logs() and return whether it will be printed.
+  // If true, the caller must print it with logs() (which won't count it again).
+  public synchronized static boolean wouldPrint() {
+    if(!indWithin() || !thisRun().newLine()) return false;
+    linePending.set(true);
+    return true;
+  }
+  private static boolean lineCounted() {
+    if(linePending.get()) { linePending.set(false); return true; }
+    return indWithin() && thisRun().newLine();
+  }
+  public synchronized static void logss(String format, Object... args) {
+    if(logssShouldPrint()) printLines(String.format(format, args));
+  }
+  public synchronized static void logss(Object o) {
+    if(logssShouldPrint()) printLines(o);
   }
-  public static void logss(Object o) {
+  private static boolean logssShouldPrint() {
     // Output something if parent outputted something.
     // Subtle note: parent must have been a track, not logs, so its run
     // information has not been updated yet until it closes.
     // Therefore, calling shouldPrint() on it is valid.
     if(indLevel == 0 || parentIndWithin() && parentRun().shouldPrint()) {
       thisRun().newLine();
-      printLines(o);
+      return true;
     }
+    return false;
   }
   public static void dbg(String format, Object... args) {
-    dbg(String.format(format, args));
+    logss("DBG: " + format, args);
   }
   public static void dbg(Object o) {
     logss("DBG: " + o);
   }
   public static void rant(String format, Object... args) {
-    rant(String.format(format, args));
+    logss("RANT: " + format, args);
   }
   public static void rant(Object o) {
     logss("RANT: " + o);
   }
-  public static void error(String format, Object... args) {
-    error(String.format(format, args));
+  public synchronized static void error(String format, Object... args) {
+    numErrors++;
+    if(repeatOk(format)) print("ERROR: " + String.format(format, args) + "\n");
   }
-  public static void error(Object o) {
+  public synchronized static void error(Object o) {
     print("ERROR: " + o + "\n");
     numErrors++;
   }
-  public static void warning(String format, Object... args) {
-    warning(String.format(format, args));
+  public synchronized static void warning(String format, Object... args) {
+    numWarnings++;
+    if(repeatOk(format)) print("WARNING: " + String.format(format, args) + "\n");
   }
-  public static void warning(Object o) {
+  public synchronized static void warning(Object o) {
     print("WARNING: " + o + "\n");
     numWarnings++;
   }
 
+  // Whether to print another error or warning with this format string.
+  private static boolean repeatOk(String format) {
+    if(maxRepeats <= 0) return true;
+    int[] count = repeats.get(format);
+    if(count == null) repeats.put(format, count = new int[1]);
+    return ++count[0] <= maxRepeats;
+  }
+  // Say how many errors and warnings were not printed in this track.
+  private static void printRepeatSummary() {
+    if(repeats.isEmpty()) return;
+    for(Map.Entry<String, int[]> e : repeats.entrySet()) {
+      int n = e.getValue()[0] - maxRepeats;
+      if(n > 0) print("... " + n + " more like \"" + e.getKey() + "\" ...\n");
+    }
+    repeats.clear();
+  }
+
   /*public static void barf(Object o) throws RuntimeException {
     throw new RuntimeException(o.toString());
   }
@@ -151,6 +196,10 @@ public class LogInfo {
     public static String file = "";
   @Option(gloss="Whether to output to the console.", name="stdout")
     public static boolean writeToStdout = true;
+  @Option(gloss="Print at most this many errors (or warnings) with the same format per track (0 means no limit).")
+    public static int maxRepeats = 10;
+  @Option(gloss="Write the output from a separate thread.")
+    public static boolean async = false;
   @Option(gloss="Dummy placeholder for a comment")
     static public String note = "";
 
@@ -181,6 +230,10 @@ public class LogInfo {
       fout = IOUtils.openOutHard(file);
     }
     if(writeToStdout) out = stdout;
+    if(async && writer == null) {
+      writer = new AsyncWriter();
+      writer.start();
+    }
   }
 
   static LogRun parentRun() { return runs.get(indLevel-1); }
@@ -192,10 +245,64 @@ public class LogInfo {
   static boolean parentIndWithin() { return indLevel-1 <= maxIndLevel; }
 
   static void rawPrint(Object o) {
+    if(writer != null) { writer.print(o.toString()); return; }
     if(out != null) { out.print(o); out.flush(); }
     if(fout != null) { fout.print(o); fout.flush(); }
   }
 
+  // Wait until everything printed so far has been written.
+  public static void flush() {
+    if(writer != null) writer.waitUntilWritten();
+  }
+
+  // Writes out what rawPrint() gives it, in order, on its own thread.
+  // Flushes whenever it runs out of things to write.
+  static class AsyncWriter extends Thread {
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+    private long numQueued, numWritten; // Synchronized on this
+
+    AsyncWriter() {
+      super("LogInfo.AsyncWriter");
+      setDaemon(true);
+    }
+
+    void print(String s) {
+      synchronized(this) { numQueued++; }
+      queue.add(s);
+    }
+
+    synchronized void waitUntilWritten() {
+      try {
+        while(numWritten < numQueued) wait();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public void run() {
+      List<String> batch = new ArrayList<String>();
+      try {
+        while(true) {
+          batch.add(queue.take());
+          queue.drainTo(batch);
+          for(String s : batch) {
+            if(out != null) out.print(s);
+            if(fout != null) fout.print(s);
+          }
+          if(out != null) out.flush();
+          if(fout != null) fout.flush();
+          synchronized(this) {
+            numWritten += batch.size();
+            notifyAll();
+          }
+          batch.clear();
+        }
+      } catch(InterruptedException e) {
+        // Done
+      }
+    }
+  }
+
   // Print with indent; flush the buffer as necessary
   static void print(Object o) {
     rawPrint(buf);
@@ -229,6 +336,12 @@ public class LogInfo {
   static StopWatch watch;        // StopWatch that starts at the beginning of the program
   static int numErrors;          // Number of errors made
   static int numWarnings;        // Number of warnings
+  // Per thread (other threads log in between): wouldPrint() said yes and the line hasn't been printed yet
+  static ThreadLocal<Boolean> linePending = new ThreadLocal<Boolean>() {
+    protected Boolean initialValue() { return false; }
+  };
+  static Map<String, int[]> repeats = new HashMap<String, int[]>(); // Errors and warnings in this track, by format
+  static AsyncWriter writer;     // If async
 }
 
 /**
@@ -0,0 +1,159 @@
+package fig.basic;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Precomputed @Option annotations of the classes in a class directory, so
+ * that OptionsParser doesn't have to read the annotations through
+ * reflection at every start (which takes a good part of the startup time
+ * of the small tools).  Built by make:
+ *   java -cp classes fig.basic.OptionsIndex classes
+ * which writes classes/fig/basic/options.index, one line per option:
+ *   class  CRC of the class file  field  name  required  condReq  hotTag  gloss
+ * A class whose class file has changed since (or which isn't in the index)
+ * is read through reflection as before.
+ */
+public class OptionsIndex {
+  static final String resource = "options.index";
+
+  private static Map<String, List<String[]>> index; // class -> options (the fields of a line)
+
+  // Return the options of c (in the order of c.getFields()), or null if c isn't in the index.
+  static List<OptInfo> getOptInfos(Class<?> c, String group, Object obj) {
+    List<String[]> entries = getIndex().get(c.getName());
+    if(entries == null) return null;
+    long crc = classFileCrc(c);
+    if(crc == -1 || Long.parseLong(entries.get(0)[1]) != crc) return null; // Out of date
+    List<OptInfo> options = new ArrayList<OptInfo>();
+    try {
+      for(String[] fields : entries) {
+        OptInfo opt = new OptInfo();
+        opt.group = group;
+        opt.field = c.getField(fields[2]);
+        opt.name = fields[3];
+        opt.required = Boolean.parseBoolean(fields[4]);
+        opt.condReq = fields[5];
+        opt.hotTag = fields[6];
+        opt.gloss = fields[7];
+        opt.obj = obj;
+        options.add(opt);
+      }
+    } catch(NoSuchFieldException e) {
+      return null;
+    }
+    return options;
+  }
+
+  // CRC-32 of the class file of c (which has its annotations), or -1 if we can't read it.
+  private static long classFileCrc(Class<?> c) {
+    InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+    if(in == null) return -1;
+    try {
+      CRC32 crc = new CRC32();
+      byte[] buf = new byte[8192];
+      int n;
+      while((n = in.read(buf)) != -1) crc.update(buf, 0, n);
+      in.close();
+      return crc.getValue();
+    } catch(IOException e) {
+      return -1;
+    }
+  }
+
+  private synchronized static Map<String, List<String[]>> getIndex() {
+    if(index != null) return index;
+    index = new HashMap<String, List<String[]>>();
+    InputStream in = OptionsIndex.class.getResourceAsStream(resource);
+    if(in == null) return index;
+    try {
+      BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      String line;
+      while((line = r.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if(fields.length != 8) continue;
+        for(int i = 0; i < fields.length; i++) fields[i] = unescape(fields[i]);
+        List<String[]> entries = index.get(fields[0]);
+        if(entries == null) index.put(fields[0], entries = new ArrayList<String[]>());
+        entries.add(fields);
+      }
+      r.close();
+    } catch(IOException e) {
+      index.clear(); // Use reflection
+    }
+    return index;
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+  private static String unescape(String s) {
+    if(s.indexOf('\\') == -1) return s;
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if(c == '\\' && i+1 < s.length()) {
+        c = s.charAt(++i);
+        sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c);
+      }
+      else
+        sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  // Add the classes under dir (with package prefix) to classNames.
+  private static void findClasses(File dir, String prefix, List<String> classNames) {
+    File[] files = dir.listFiles();
+    if(files == null) return;
+    Arrays.sort(files);
+    for(File f : files) {
+      if(f.isDirectory())
+        findClasses(f, prefix + f.getName() + ".", classNames);
+      else if(f.getName().endsWith(".class"))
+        classNames.add(prefix + f.getName().substring(0, f.getName().length() - ".class".length()));
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if(args.length != 1) {
+      System.err.println("Usage: OptionsIndex <class directory>");
+      System.exit(1);
+    }
+    List<String> classNames = new ArrayList<String>();
+    findClasses(new File(args[0]), "", classNames);
+    File file = new File(args[0], OptionsIndex.class.getPackage().getName().replace('.', '/') + "/" + resource);
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    int numClasses = 0, numOptions = 0;
+    for(String className : classNames) {
+      Class<?> c;
+      try {
+        c = Class.forName(className, false, OptionsIndex.class.getClassLoader());
+      } catch(Throwable t) {
+        continue; // Can't load it, so it can't be registered either
+      }
+      Field[] fields;
+      try {
+        fields = c.getFields();
+      } catch(Throwable t) {
+        continue;
+      }
+      long crc = classFileCrc(c);
+      boolean any = false;
+      for(Field field : fields) {
+        Option ann = field.getAnnotation(Option.class);
+        if(ann == null || crc == -1) continue;
+        out.println(escape(className) + "\t" + crc + "\t" + field.getName() + "\t" +
+            escape(ann.name().equals("") ? field.getName() : ann.name()) + "\t" + ann.required() + "\t" +
+            escape(ann.condReq()) + "\t" + escape(ann.hotTag()) + "\t" + escape(ann.gloss()));
+        numOptions++;
+        any = true;
+      }
+      if(any) numClasses++;
+    }
+    out.close();
+    System.out.println("Wrote " + numOptions + " options of " + numClasses + " classes to " + file);
+  }
+}
@@ -6,210 +6,6 @@ import java.util.*;
 import java.lang.annotation.*;
 import java.lang.reflect.*;
 
-class OptInfo {
-  public String group, name, gloss;
-  public String condReq;
-  public String hotTag;
-  public boolean required;
-  public boolean specified;
-  public Object obj;
-  public String stringRepn; // Used when obj is Random or BufferedReader (hard to get string)
-  public Field field;
-
-  public String fullName() { return group+"."+name; }
-
-  // Return "" if field is not an enum type
-  public String getEnumStr() { return getEnumStr(field.getType()); }
-  public static String getEnumStr(Class c) {
-    return StrUtils.join(c.getEnumConstants(), "|");
-  }
-
-  public Object getValue() {
-    try {
-      return field.get(obj);
-    } catch(IllegalAccessException e) {
-      stderr.println("Can't access field: " + e);
-      return null;
-    }
-  }
-
-  // Important to format properly in a way that we can read it and parse it again.
-  public String getValueString() {
-    if(stringRepn != null) return stringRepn;
-    Object o = getValue();
-    if(o == null) return "";
-    if(o instanceof ArrayList)
-      return StrUtils.join((ArrayList)o);
-    if(o instanceof Random) // Argh, can't get the seed, just assume it's 1
-      return "1";
-    return o.toString();
-  }
-
-  public String toString() {
-    String valueStr = getValueString();
-    String s = String.format("%-30s <%5s> : %s [%s]",
-      fullName(), typeStr(), gloss, valueStr);
-    String t = getEnumStr();
-    if(!t.equals("")) s += " " + t;
-    return s;
-  }
-  public void print() { stdout.println("  " + toString()); }
-
-  private String typeStr() {
-    return typeStr(field.getGenericType());
-  }
-
-  private static boolean isEnum(Type type) {
-    return type instanceof Class && ((Class)type).isEnum();
-  }
-
-  private static String typeStr(Type type) {
-    if(type.equals(boolean.class) || type.equals(Boolean.class)) return "bool";
-    if(type.equals(int.class) || type.equals(Integer.class))     return "int";
-    if(type.equals(double.class) || type.equals(Double.class))   return "dbl";
-    if(type.equals(String.class))         return "str";
-    if(type.equals(BufferedReader.class)) return "read";
-    if(type.equals(Random.class))         return "rand";
-    if(isEnum(type))                      return "enum";
-    if(type instanceof ParameterizedType) {
-      ParameterizedType ptype = (ParameterizedType)type;
-      type = ptype.getRawType();
-      Type[] childTypes = ptype.getActualTypeArguments();
-      if(type.equals(ArrayList.class))      return typeStr(childTypes[0]) + "*";
-      if(type.equals(Pair.class))           return typeStr(childTypes[0]) + "2";
-    }
-    return "unk";
-  }
-
-  private static boolean checkNumArgs(int want, int have, String fullName) {
-    if(have != want) {
-      stderr.printf(want + " arguments required for " + fullName + ", but got " + have + "\n");
-      return false;
-    }
-    return true;
-  }
-
-  // Return errorValue if there's an error (null is a valid value).
-  // type: the data type of the variable
-  // l: the command line arguments to interpret
-  private static String errorValue = "ERROR";
-  private static Object interpretValue(Type type, List<String> l, String fullName) {
-    int n = l.size();
-    String firstArg = n > 0 ? l.get(0) : null;
-
-    if(type.equals(boolean.class) || type.equals(Boolean.class)) {
-      boolean x = (n == 0 ? true : Boolean.parseBoolean(firstArg));
-      return x;
-    }
-    if(type.equals(int.class) || type.equals(Integer.class)) {
-      if(!checkNumArgs(1, n, fullName)) return errorValue;
-      int x;
-      if(firstArg.equals("MAX"))      x = Integer.MAX_VALUE;
-      else if(firstArg.equals("MIN")) x = Integer.MIN_VALUE;
-      else                            x = Integer.parseInt(firstArg);
-      return x;
-    }
-    if(type.equals(double.class) || type.equals(Double.class)) {
-      if(!checkNumArgs(1, n, fullName)) return errorValue;
-      double x;
-      if(firstArg.equals("MAX"))      x = Double.POSITIVE_INFINITY;
-      else if(firstArg.equals("MIN")) x = Double.NEGATIVE_INFINITY;
-      else                            x = Double.parseDouble(firstArg);
-      return x;
-    }
-    if(type.equals(String.class)) { // Join many arguments using spaces
-      String x = StrUtils.join(l);
-      return x;
-    }
-    if(type.equals(BufferedReader.class)) {
-      if(!checkNumArgs(1, n, fullName)) return errorValue;
-      BufferedReader x = "-".equals(firstArg) ? LogInfo.stdin : IOUtils.openInHard(firstArg);
-      return x;
-    }
-    if(type.equals(Random.class)) {
-      if(!checkNumArgs(1, n, fullName)) return errorValue;
-      // seed 0 means use the time
-      int seed = Integer.parseInt(firstArg);
-      Random x = seed == 0 ? new Random() : new Random(seed);
-      return x;
-    }
-    if(type instanceof Class && ((Class)type).isEnum()) {
-      if(n == 0) return null;
-      if(!checkNumArgs(1, n, fullName)) return errorValue;
-      Object x = Utils.parseEnum((Class)type, firstArg);
-      if(x == null) {
-        stderr.println("Invalid enum: '" + firstArg + "'; valid choices: " + getEnumStr((Class)type));
-        return errorValue;
-      }
-      return x;
-    }
-
-    if(type instanceof ParameterizedType) {
-      // Types involving generics: pair, arraylist
-      ParameterizedType ptype = (ParameterizedType)type;
-      type = ptype.getRawType();
-      Type[] childTypes = ptype.getActualTypeArguments();
-
-      if(type.equals(Pair.class)) { // Delimited by comma
-        if(!checkNumArgs(1, n, fullName)) return errorValue;
-        // Put the elements in the array
-        String[] tokens = firstArg.split(",", 2);
-        if(tokens.length != 2) {
-          stderr.println("Invalid pair: '" + firstArg + "'");
-          return errorValue;
-        }
-        Object o1 = interpretValue(childTypes[0], ListUtils.newList(tokens[0]), fullName);
-        if(o1 == errorValue) return errorValue;
-        Object o2 = interpretValue(childTypes[1], ListUtils.newList(tokens[1]), fullName);
-        if(o2 == errorValue) return errorValue;
-        return new Pair(o1, o2);
-      }
-      else if(type.equals(ArrayList.class)) {
-        ArrayList x = new ArrayList();
-        // Put the elements in the array
-        for(String a : l) {
-          Object o = interpretValue(childTypes[0], ListUtils.newList(a), fullName);
-          if(o == errorValue) return errorValue;
-          x.add(o);
-        }
-        return x;
-      }
-    }
-
-    stderr.println("Can't handle weird field type: " + type);
-    return errorValue;
-  }
-
-  public boolean set(List<String> l, boolean append) {
-    try {
-      Object v = interpretValue(field.getGenericType(), l, fullName());
-      if(v == errorValue) return false;
-      //System.out.println(name + " " + stringRepn + " " + v);
-      if(!append) {
-        stringRepn = StrUtils.join(l);
-        field.set(obj, v);
-      }
-      else {
-        Object oldv = field.get(obj);
-        //System.out.println("append " + l);
-        //System.out.println((oldv == null ? "" : (String)oldv + " ") + v);
-        stringRepn = (stringRepn == null ? "" : stringRepn + " ") +
-          StrUtils.join(l);
-        if(oldv instanceof ArrayList)
-          ((ArrayList)oldv).addAll((ArrayList)v);
-        else if(oldv instanceof String)
-          field.set(obj, (oldv == null ? "" : (String)oldv + " ") + v);
-      }
-    } catch(IllegalAccessException e) {
-      stderr.println("Can't access field: " + e);
-      return false;
-    }
-
-    specified = true;
-    return true;
-  }
-}
-
 /**
  * Due to historical reasons, all the member functions are prefixed with do,
  * and all the static functions (apply to the global theParser instance)
@@ -296,6 +92,13 @@ public class OptionsParser {
     for(String group : objects.keySet()) {
       Object obj = objects.get(group);
 
+      // Precomputed (make builds the index)
+      List<OptInfo> indexed = OptionsIndex.getOptInfos(classOf(obj), group, obj);
+      if(indexed != null) {
+        options.addAll(indexed);
+        continue;
+      }
+
       // For each field that has an option annotation...
       for(Field field : classOf(obj).getFields()) {
       //for(Field field : classOf(obj).getDeclaredFields()) {
@@ -2,6 +2,7 @@ package fig.basic;
 
 import static fig.basic.LogInfo.*;
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 
 /**
@@ -55,30 +56,30 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
   }
   public double get(String key, double defaultValue) {
     int i = find(key, false);
-    return i == -1 ? defaultValue : values[i];
+    return i == -1 ? defaultValue : value(i);
   }
   public double getWithErrorMsg(String key, double defaultValue) {
     int i = find(key, false);
     if(i == -1) error("%s not in map, using %f", key, defaultValue);
-    return i == -1 ? defaultValue : values[i];
+    return i == -1 ? defaultValue : value(i);
   }
   public double getSure(String key) {
     // Throw exception if key doesn't exist.
     int i = find(key, false);
     if(i == -1) throw new RuntimeException("Missing key: " + key);
-    return values[i];
+    return value(i);
   }
   public void put(String key, double value) {
     assert !Double.isNaN(value);
     int i = find(key, true);
     keys[i] = key;
-    values[i] = value;
+    setAt(i, value);
   }
   public void incr(String key, double dValue) {
     int i = find(key, true);
     keys[i] = key;
-    if(Double.isNaN(values[i])) values[i] = dValue; // New value
-    else values[i] += dValue;
+    if(Double.isNaN(value(i))) setAt(i, dValue); // New value
+    else setAt(i, value(i) + dValue);
   }
   public int size() { return num; }
   public int capacity() { return keys.length; }
@@ -87,7 +88,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     for(int i = 0; i < keys.length; i++)
       keys[i] = null;
   }*/
-  public void gut() { values = null; } // Save memory
+  public void gut() { values = null; floatValues = null; bufferValues = null; } // Save memory
 
   // Simple operations on values
   // Implement them here for maximum efficiency.
@@ -95,23 +96,107 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     double sum = 0;
     for(int i = 0; i < keys.length; i++)
       if(keys[i] != null)
-        sum += values[i];
+        sum += value(i);
     return sum;
   }
   public void putAll(double value) {
     for(int i = 0; i < keys.length; i++)
       if(keys[i] != null)
-        values[i] = value;
+        setAt(i, value);
   }
   public void incrAll(double dValue) {
     for(int i = 0; i < keys.length; i++)
       if(keys[i] != null)
-        values[i] += dValue;
+        setAt(i, value(i) + dValue);
   }
   public void multAll(double dValue) {
     for(int i = 0; i < keys.length; i++)
       if(keys[i] != null)
-        values[i] *= dValue;
+        setAt(i, value(i) * dValue);
+  }
+
+  // Operations with a map that shares the same keys
+  // (e.g., a copy made after the keys were locked).
+  public void putAll(StringDoubleMap map) {
+    checkSameKeys(map);
+    for(int i = 0; i < keys.length; i++)
+      if(keys[i] != null)
+        setAt(i, map.value(i));
+  }
+  public void incrAll(StringDoubleMap map, double scale) {
+    checkSameKeys(map);
+    for(int i = 0; i < keys.length; i++)
+      if(keys[i] != null)
+        setAt(i, value(i) + scale * map.value(i));
+  }
+  private void checkSameKeys(StringDoubleMap map) {
+    if(map.keys != keys)
+      throw new IllegalArgumentException("Maps don't share keys");
+  }
+
+  // Access by position in the underlying array (0 <= i < capacity()).
+  // Once the keys are locked, a key's position doesn't change, so other
+  // structures can keep values parallel to this map's.
+  public int indexOf(String key) { return find(key, false); }
+  public void incrAt(int i, double dValue) { setAt(i, value(i) + dValue); }
+  public boolean isLocked() { return locked; }
+
+  // Store the values as floats (half the memory) or back as doubles.
+  // Only for maps whose keys are locked.
+  // Values are rounded to float when they're set, so don't accumulate in float mode.
+  public void useFloats() {
+    if(floatValues != null || bufferValues != null) return;
+    if(!locked) throw new RuntimeException("Can only use floats when keys are locked");
+    floatValues = new float[values.length];
+    for(int i = 0; i < values.length; i++) floatValues[i] = (float)values[i];
+    values = null;
+  }
+  public void useDoubles() {
+    if(floatValues == null) return;
+    values = new double[floatValues.length];
+    for(int i = 0; i < values.length; i++) values[i] = floatValues[i];
+    floatValues = null;
+  }
+  public boolean usesFloats() { return floatValues != null; }
+
+  // Store the values in buf (e.g., off the heap or in a memory-mapped file),
+  // which has room for size() values: value i is buf.get(i).
+  // Only for sorted lists whose keys are locked.
+  // If copy, put the current values into buf; otherwise, the values are the ones in buf.
+  public void useBuffer(DoubleBuffer buf, boolean copy) {
+    if(!locked || mapType != MapType.SORTED_LIST)
+      throw new RuntimeException("Can only use a buffer for a sorted list with locked keys");
+    if(buf.capacity() < num) throw new IllegalArgumentException("Buffer too small");
+    if(copy)
+      for(int i = 0; i < num; i++) buf.put(i, value(i));
+    values = null;
+    floatValues = null;
+    bufferValues = buf;
+  }
+  public boolean usesBuffer() { return bufferValues != null; }
+  public boolean isSortedList() { return mapType == MapType.SORTED_LIST; }
+
+  // A locked sorted list with the given keys (in the order of a sorted list,
+  // e.g. the order keySet() returns for another one) and values in buf.
+  public static StringDoubleMap newLocked(String[] keys, DoubleBuffer buf) {
+    StringDoubleMap map = new StringDoubleMap();
+    map.mapType = MapType.SORTED_LIST;
+    map.keys = keys;
+    map.num = keys.length;
+    map.locked = true;
+    map.useBuffer(buf, false);
+    return map;
+  }
+
+  private double value(int i) {
+    if(values != null) return values[i];
+    if(floatValues != null) return floatValues[i];
+    return bufferValues.get(i);
+  }
+  private void setAt(int i, double value) {
+    if(values != null) values[i] = value;
+    else if(floatValues != null) floatValues[i] = (float)value;
+    else bufferValues.put(i, value);
   }
 
   // If keys are locked, we can share the same keys.
@@ -121,7 +206,12 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     newMap.locked = locked;
     newMap.num = num;
     newMap.keys = locked ? keys : (String[])keys.clone(); // Share keys!
-    newMap.values = (double[])values.clone();
+    newMap.values = values == null ? null : (double[])values.clone();
+    newMap.floatValues = floatValues == null ? null : (float[])floatValues.clone();
+    if(bufferValues != null) { // Copies go on the heap
+      newMap.values = new double[keys.length];
+      for(int i = 0; i < num; i++) newMap.values[i] = bufferValues.get(i);
+    }
     return newMap;
   }
   // Return a map with only keys in the set
@@ -133,7 +223,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
       for(int i = 0; i < keys.length; i++) {
         if(set.contains(keys[i])) {
           newMap.keys[newMap.num] = keys[i];
-          newMap.values[newMap.num] = values[i];
+          newMap.values[newMap.num] = value(i);
           newMap.num++;
         }
       }
@@ -141,7 +231,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     else if(mapType == MapType.HASH_TABLE) {
       for(int i = 0; i < keys.length; i++)
         if(keys[i] != null && set.contains(keys[i]))
-          newMap.put(keys[i], values[i]);
+          newMap.put(keys[i], value(i));
     }
     newMap.locked = locked;
     return newMap;
@@ -168,7 +258,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
   // Compare by value.
   public class EntryValueComparator implements Comparator<Entry> {
     public int compare(Entry e1, Entry e2) {
-      return Double.compare(values[e1.i], values[e2.i]);
+      return Double.compare(value(e1.i), value(e2.i));
     }
   }
   public EntryValueComparator entryValueComparator() { return new EntryValueComparator(); }
@@ -178,8 +268,8 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     private Entry(int i) { this.i = i; }
 
     public String getKey() { return keys[i]; }
-    public double getValue() { return values[i]; }
-    public void setValue(double newValue) { values[i] = newValue; }
+    public double getValue() { return value(i); }
+    public void setValue(double newValue) { setAt(i, newValue); }
 
     private final int i;
   }
@@ -230,7 +320,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     public String next() { return keys[nextIndex()]; }
   }
   private class ValueIterator extends MapIterator<Double> {
-    public Double next() { return values[nextIndex()]; }
+    public Double next() { return value(nextIndex()); }
   }
   private abstract class MapIterator<E> implements Iterator<E> {
     public MapIterator() {
@@ -394,7 +484,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
       }
       if(modify) { // Not found
         num++;
-        values[i] = Double.NaN;
+        setAt(i, Double.NaN);
         return i;
       }
       else
@@ -442,7 +532,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     System.out.println("size/capacity = " + size() + "/" + capacity());
     System.out.println("numCollisions = " + numCollisions);
     /*for(int i = 0; i < keys.length; i++) {
-      System.out.printf("[%d] %s (%d) => %f\n", i, keys[i], (keys[i] == null ? 0 : keys[i].hashCode()), values[i]);
+      System.out.printf("[%d] %s (%d) => %f\n", i, keys[i], (keys[i] == null ? 0 : keys[i].hashCode()), value(i));
     }*/
   }
 
@@ -492,6 +582,8 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
   private int num;
   private String[] keys;
   private double[] values;
+  private float[] floatValues; // Instead of values, after useFloats()
+  private DoubleBuffer bufferValues; // Instead of values, after useBuffer()
   private int numCollisions; // For debugging
 
   //////////////////////////////////////////////////////////// 
@@ -610,7 +702,7 @@ public class StringDoubleMap implements Iterable<StringDoubleMap.Entry>, Seriali
     TDoubleMap map = new TDoubleMap();
     for(int i = 0; i < keys.length; i++)
       if(keys[i] != null)
-        map.put(keys[i], values[i]);
+        map.put(keys[i], value(i));
     return map;
   }
 }
@@ -3,6 +3,11 @@ package fig.basic;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.lang.management.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
 
 public class SysInfoUtils {
   public static String getCurrentDate() {
@@ -28,4 +33,61 @@ public class SysInfoUtils {
     long freeMem = Runtime.getRuntime().freeMemory();
     return Fmt.bytesToString(totalMem-freeMem);
   }
+
+  // Peak heap usage.  The heap only grows between garbage collections, so
+  // its peak is the total heap in use just before some collection (which
+  // the collectors tell us about) or now.  Without notifications from the
+  // collectors (not HotSpot), we only see the heap when asked.
+  private static boolean tracking;
+  private static long peakHeap; // Since the last reset
+  private static long maxPeakHeap; // Since tracking started; resets don't clear it
+
+  private static synchronized void addHeapUsage(long used) {
+    peakHeap = Math.max(peakHeap, used);
+    maxPeakHeap = Math.max(maxPeakHeap, used);
+  }
+  private static synchronized void startTracking() {
+    if(tracking) return;
+    tracking = true;
+    NotificationListener listener = new NotificationListener() {
+      public void handleNotification(Notification n, Object handback) {
+        if(!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+        GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData)n.getUserData()).getGcInfo();
+        long used = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+          if(pool.getType() != MemoryType.HEAP) continue;
+          MemoryUsage usage = info.getMemoryUsageBeforeGc().get(pool.getName());
+          if(usage != null) used += usage.getUsed();
+        }
+        addHeapUsage(used);
+      }
+    };
+    try {
+      for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        if(gc instanceof NotificationEmitter)
+          ((NotificationEmitter)gc).addNotificationListener(listener, null, null);
+    } catch(LinkageError e) {
+      // No com.sun.management
+    }
+  }
+  private static long sampleHeapMemory() {
+    startTracking();
+    long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    addHeapUsage(used);
+    return used;
+  }
+
+  // Peak heap usage since the last reset.
+  public static synchronized long getPeakHeapMemory() {
+    sampleHeapMemory();
+    return peakHeap;
+  }
+  public static synchronized void resetPeakHeapMemory() {
+    peakHeap = sampleHeapMemory();
+  }
+  // Peak heap usage since the first call to any of these.
+  public static synchronized long getMaxPeakHeapMemory() {
+    sampleHeapMemory();
+    return maxPeakHeap;
+  }
 }
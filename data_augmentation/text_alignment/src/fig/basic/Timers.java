@@ -0,0 +1,266 @@
+package fig.basic;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Timing of short, frequent events (e.g. the E-step of one sentence),
+ * which StopWatch rounds to 0 ms.
+ *   long start = Timers.start();
+ *   ...
+ *   Timers.stop("E-step", start, length);
+ * Times are measured with System.nanoTime() and kept in a histogram per
+ * named phase (and per phase and length bucket, if a length is given).
+ * Each thread records into its own histograms, which are merged when the
+ * statistics are read, so the threads don't contend with each other.
+ *
+ * A histogram has 16 buckets per power of 2 (as in HDR histograms), so
+ * percentiles are accurate to within 1/16 and take constant memory.
+ *
+ * With trackAllocation (HotSpot only), the bytes allocated by the thread
+ * between start() and stop() are added up for each phase as well.
+ */
+public class Timers {
+  public static class Histogram {
+    private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+    private final long[] counts = new long[(64-SUB_BITS+1) * SUB];
+    private long n, total, max, allocated;
+
+    private static int bucket(long x) {
+      if(x < SUB) return (int)x;
+      int e = 63 - Long.numberOfLeadingZeros(x); // e >= SUB_BITS
+      return (e-SUB_BITS+1) * SUB + (int)((x >>> (e-SUB_BITS)) & (SUB-1));
+    }
+    // Largest value which falls in bucket b
+    private static long upperBound(int b) {
+      if(b < SUB) return b;
+      int e = b / SUB + SUB_BITS - 1;
+      long width = 1L << (e-SUB_BITS);
+      return ((SUB + b % SUB) << (e-SUB_BITS)) + width - 1;
+    }
+
+    public void add(long x) {
+      if(x < 0) x = 0;
+      counts[bucket(x)]++;
+      n++;
+      total += x;
+      if(x > max) max = x;
+    }
+    public void addAll(Histogram h) {
+      for(int b = 0; b < counts.length; b++) counts[b] += h.counts[b];
+      n += h.n;
+      total += h.total;
+      max = Math.max(max, h.max);
+      allocated += h.allocated;
+    }
+
+    public long count() { return n; }
+    public long total() { return total; }
+    public long allocated() { return allocated; }
+    public long max() { return max; }
+    public double mean() { return n == 0 ? 0 : (double)total / n; }
+    // Smallest x such that at least a fraction q of the values are <= x (approximately)
+    public long percentile(double q) {
+      long rank = (long)Math.ceil(q * n), sum = 0;
+      for(int b = 0; b < counts.length; b++) {
+        sum += counts[b];
+        if(sum >= rank && sum > 0) return Math.min(upperBound(b), max);
+      }
+      return max;
+    }
+  }
+
+  // Histograms of each thread; synchronized on the map
+  // (only the thread itself writes to it, so this is uncontended)
+  private static final List<Map<String, Histogram>> threadHistograms = new ArrayList<Map<String, Histogram>>();
+  private static final ThreadLocal<Map<String, Histogram>> histograms = new ThreadLocal<Map<String, Histogram>>() {
+    protected Map<String, Histogram> initialValue() {
+      Map<String, Histogram> map = new HashMap<String, Histogram>();
+      synchronized(threadHistograms) { threadHistograms.add(map); }
+      return map;
+    }
+  };
+  private static final List<String> names = new ArrayList<String>(); // In order of first use
+
+  ////////////////////////////////////////////////////////////
+  // Allocation
+
+  private static volatile boolean trackAllocation;
+  private static com.sun.management.ThreadMXBean threadBean;
+
+  // Allocated bytes at each start() of this thread that hasn't been stopped yet
+  private static class AllocationStack {
+    static final int capacity = 64;
+    final long[] starts = new long[capacity], allocated = new long[capacity];
+    int n;
+
+    void push(long start, long bytes) {
+      if(n == capacity) { // Something never stopped: forget the oldest
+        System.arraycopy(starts, 1, starts, 0, n-1);
+        System.arraycopy(allocated, 1, allocated, 0, n-1);
+        n--;
+      }
+      starts[n] = start;
+      allocated[n++] = bytes;
+    }
+    // Return the bytes at start (or -1), dropping any starts after it that weren't stopped.
+    long pop(long start) {
+      for(int i = n-1; i >= 0; i--) {
+        if(starts[i] == start) { n = i; return allocated[i]; }
+      }
+      return -1;
+    }
+  }
+  private static final ThreadLocal<AllocationStack> allocationStacks = new ThreadLocal<AllocationStack>() {
+    protected AllocationStack initialValue() { return new AllocationStack(); }
+  };
+
+  // Return whether allocation can be tracked on this JVM.
+  public static boolean trackAllocation() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(!(bean instanceof com.sun.management.ThreadMXBean)) return false;
+    threadBean = (com.sun.management.ThreadMXBean)bean;
+    if(!threadBean.isThreadAllocatedMemorySupported()) return false;
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    trackAllocation = true;
+    return true;
+  }
+  // Bytes allocated by the current thread so far.
+  public static long allocatedBytes() {
+    return threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static long start() {
+    long start = System.nanoTime();
+    if(trackAllocation) allocationStacks.get().push(start, allocatedBytes());
+    return start;
+  }
+
+  // Record the time since start under name (and return it).
+  public static long stop(String name, long start) {
+    long time = System.nanoTime() - start;
+    long bytes = allocatedSince(start);
+    Map<String, Histogram> map = histograms.get();
+    synchronized(map) { add(getHistogram(map, name), time, bytes); }
+    return time;
+  }
+  // Also record it under the length bucket of name.
+  public static long stop(String name, long start, int length) {
+    long time = System.nanoTime() - start;
+    long bytes = allocatedSince(start);
+    Map<String, Histogram> map = histograms.get();
+    synchronized(map) {
+      add(getHistogram(map, name), time, bytes);
+      add(getHistogram(map, name + " " + lengthBucket(length)), time, bytes);
+    }
+    return time;
+  }
+
+  private static long allocatedSince(long start) {
+    if(!trackAllocation) return 0;
+    long bytes = allocationStacks.get().pop(start);
+    return bytes == -1 ? 0 : allocatedBytes() - bytes;
+  }
+  private static void add(Histogram h, long time, long bytes) {
+    h.add(time);
+    h.allocated += bytes;
+  }
+
+  private static Histogram getHistogram(Map<String, Histogram> map, String name) {
+    Histogram h = map.get(name);
+    if(h == null) {
+      map.put(name, h = new Histogram());
+      synchronized(names) { if(!names.contains(name)) names.add(name); }
+    }
+    return h;
+  }
+
+  private static String phase(String name) {
+    int k = name.lastIndexOf(" [len ");
+    return k == -1 ? name : name.substring(0, k);
+  }
+  private static int minLength(String name) {
+    int k = name.lastIndexOf(" [len ");
+    if(k == -1) return -1;
+    String s = name.substring(k + 6, name.length()-1);
+    int dash = s.indexOf('-');
+    return Integer.parseInt(dash == -1 ? s : s.substring(0, dash));
+  }
+
+  // Lengths 1, 2, 3-4, 5-8, 9-16, ...
+  private static String lengthBucket(int length) {
+    if(length <= 2) return "[len " + Math.max(length, 0) + "]";
+    int hi = Integer.highestOneBit(length-1) << 1;
+    return "[len " + (hi/2+1) + "-" + hi + "]";
+  }
+
+  // Merge the histograms of all the threads.
+  // Phases are in order of first use, each followed by its length buckets.
+  public static OrderedMap<String, Histogram> getHistograms() {
+    final List<String> sorted;
+    synchronized(names) { sorted = new ArrayList<String>(names); }
+    final Map<String, Integer> order = new HashMap<String, Integer>();
+    for(String name : sorted)
+      if(phase(name).equals(name)) order.put(name, order.size());
+    Collections.sort(sorted, new Comparator<String>() {
+      public int compare(String a, String b) {
+        int c = order.get(phase(a)) - order.get(phase(b));
+        return c != 0 ? c : minLength(a) - minLength(b);
+      }
+    });
+    OrderedMap<String, Histogram> result = new OrderedMap<String, Histogram>();
+    for(String name : sorted) result.put(name, new Histogram());
+    synchronized(threadHistograms) {
+      for(Map<String, Histogram> map : threadHistograms) {
+        synchronized(map) {
+          for(Map.Entry<String, Histogram> e : map.entrySet())
+            result.get(e.getKey()).addAll(e.getValue());
+        }
+      }
+    }
+    return result;
+  }
+
+  public static OrderedStringMap getStats() {
+    OrderedStringMap map = new OrderedStringMap();
+    OrderedMap<String, Histogram> hists = getHistograms();
+    for(String name : hists.keys()) {
+      Histogram h = hists.get(name);
+      map.put(name, String.format("%s (%s x %d; p50 %s, p90 %s, p99 %s, max %s)",
+          nanosToString(h.total()), nanosToString((long)h.mean()), h.count(),
+          nanosToString(h.percentile(0.5)), nanosToString(h.percentile(0.9)),
+          nanosToString(h.percentile(0.99)), nanosToString(h.max())));
+    }
+    return map;
+  }
+
+  // Write the statistics (in nanoseconds) as JSON.
+  public static boolean writeJson(String path) {
+    if(path == null) return false;
+    PrintWriter out = IOUtils.openOutEasy(path);
+    if(out == null) return false;
+    OrderedMap<String, Histogram> hists = getHistograms();
+    out.println("{");
+    int k = 0;
+    for(String name : hists.keys()) {
+      Histogram h = hists.get(name);
+      out.printf("  \"%s\": {\"count\": %d, \"totalNs\": %d, \"meanNs\": %d, " +
+          "\"p50Ns\": %d, \"p90Ns\": %d, \"p99Ns\": %d, \"maxNs\": %d%s}%s\n",
+          name.replace("\\", "\\\\").replace("\"", "\\\""), h.count(), h.total(), (long)h.mean(),
+          h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.max(),
+          trackAllocation ? ", \"allocatedBytes\": " + h.allocated() : "",
+          ++k < hists.size() ? "," : "");
+    }
+    out.println("}");
+    out.close();
+    return true;
+  }
+
+  public static String nanosToString(long ns) {
+    if(ns < 1000) return ns + "ns";
+    if(ns < 1000000) return String.format("%.1fus", ns/1e3);
+    if(ns < 1000000000) return String.format("%.1fms", ns/1e6);
+    return new StopWatch(ns/1000000).toString();
+  }
+}
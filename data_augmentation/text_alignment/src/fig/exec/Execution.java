@@ -22,6 +22,14 @@ public class Execution {
     public static boolean create = false;
   @Option(gloss="Whether to create a thread to monitor the status.")
     public static boolean monitor = false;
+  @Option(gloss="Serve live metrics (Prometheus text format) at http://127.0.0.1:<port>/metrics (0 means don't)")
+    public static int metricsPort = 0;
+  @Option(gloss="Emit JDK Flight Recorder events at phase boundaries (Java 11+, needs a recording, e.g. -XX:StartFlightRecording)")
+    public static boolean jfrEvents = false;
+  @Option(gloss="Write the record file in a compact binary format (record.bin; convert with fig.record.RecordReader)")
+    public static boolean binaryRecord = false;
+  @Option(gloss="Write profile.json: wall time, allocation, GC time and peak heap of the run and of each phase")
+    public static boolean profile = false;
   @Option(gloss="Simply print options and exit.")
     public static boolean printOptionsAndExit = false;
   @Option(gloss="Write the name of the exec directory to this file.")
@@ -106,11 +114,13 @@ public class Execution {
 
   public static void linkFileToExec(String realFileName, String file) {
     if(StrUtils.isEmpty(realFileName) || StrUtils.isEmpty(file)) return;
+    if(getFile(file) == null) return; // No execution directory
     File f = new File(realFileName);
     Utils.createSymLink(f.getAbsolutePath(), getFile(file));
   }
   public static void linkFileFromExec(String file, String realFileName) {
     if(StrUtils.isEmpty(realFileName) || StrUtils.isEmpty(file)) return;
+    if(getFile(file) == null) return; // No execution directory
     File f = new File(realFileName);
     Utils.createSymLink(getFile(file), f.getAbsolutePath());
   }
@@ -182,10 +192,13 @@ public class Execution {
     LogInfo.init();
     track("main()", true);
 
-    // Output options
-    if(actualExecDir != null) logs("Execution directory: " + actualExecDir);
-    getInfo().printEasy(getFile("info.map"));
-    printOptions();
+    // Output options (only if there's an execution directory to put them in:
+    // getting the date and host name is a good part of the startup time)
+    if(actualExecDir != null) {
+      logs("Execution directory: " + actualExecDir);
+      getInfo().printEasy(getFile("info.map"));
+      printOptions();
+    }
     putOutput("hotOptions", OptionsParser.theParser.getHotSpec());
     if(!StrUtils.isEmpty(addToView))
       IOUtils.filePrintlnEasy(Execution.getFile("addToView"), addToView);
@@ -195,16 +208,27 @@ public class Execution {
       monitorThread = new MonitorThread();
       monitorThread.start();
     }
+    if(metricsPort > 0) Metrics.startServer(metricsPort);
+    if(profile) Profiler.start();
 
-    Record.init(Execution.getFile("record"));
+    Record.init(Execution.getFile(binaryRecord ? "record.bin" : "record"), binaryRecord);
   }
 
   // Might want to call this again after some command-line options were changed.
   public static void printOptions() {
+    if(actualExecDir == null) return;
     OptionsParser.getOptionPairs().printEasy(getFile("options.map"));
     OptionsParser.getOptionStrings().printEasy(getFile("options.help"));
   }
 
+  // StopWatch times, then Timers histograms.
+  static OrderedStringMap getTimes() {
+    OrderedStringMap times = StopWatch.getStats();
+    OrderedStringMap timers = Timers.getStats();
+    for(String key : timers.keys()) times.put(key, timers.get(key));
+    return times;
+  }
+
   public static void raiseException(Throwable t) {
     error(t + ":\n" + StrUtils.join(t.getStackTrace(), "\n"));
     t = t.getCause();
@@ -218,14 +242,20 @@ public class Execution {
     Record.finish();
 
     if(monitor) monitorThread.finish();
+    if(metricsPort > 0) Metrics.stopServer();
     setExecStatus("done", false);
-    outputMap.printEasy(getFile("output.map"));
-    StopWatch.getStats().printEasy(getFile("time.map"));
+    if(actualExecDir != null) {
+      outputMap.printEasy(getFile("output.map"));
+      getTimes().printEasy(getFile("time.map"));
+      Timers.writeJson(getFile("time.json"));
+      if(profile) Profiler.write(getFile("profile.json"));
+    }
     if(create) stderr.println(actualExecDir);
     if(LogInfo.getNumErrors() > 0 || LogInfo.getNumWarnings() > 0)
       stderr.printf("%d errors, %d warnings\n",
           LogInfo.getNumErrors(), LogInfo.getNumWarnings());
     end_track();
+    LogInfo.flush();
     System.exit(exitCode);
   }
 
@@ -0,0 +1,151 @@
+package fig.exec;
+
+import java.lang.annotation.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * JDK Flight Recorder events marking the phases of an execution, so that
+ * GC, allocation and lock profiles in a recording can be matched up with
+ * what was running.
+ *   FlightEvents.Event event = FlightEvents.begin("cross.ReadCorpus");
+ *   ...
+ *   event.sentences(n).bytes(b).end();
+ * Each name is its own event type, and all have the same fields
+ * (sentences, tokens, maxLength, bytes, info).
+ * Only on with -jfrEvents, and only recorded if a recording is running
+ * (e.g. java -XX:StartFlightRecording=filename=run.jfr).
+ *
+ * jdk.jfr only exists from Java 11 on, so the event types are made with
+ * jdk.jfr.EventFactory through reflection; on older JVMs this does nothing.
+ */
+public class FlightEvents {
+  public static class Event {
+    private final Object event; // jdk.jfr.Event, or null if we're not recording
+    private long sentences, tokens, bytes;
+    private int maxLength;
+    private String info = "";
+
+    private Event(Object event) { this.event = event; }
+
+    // (NONE is shared, so it ignores everything)
+    public Event sentences(long n) { if(event != null) sentences = n; return this; }
+    public Event tokens(long n) { if(event != null) tokens = n; return this; }
+    public Event maxLength(int n) { if(event != null) maxLength = n; return this; }
+    public Event bytes(long n) { if(event != null) bytes = n; return this; }
+    public Event info(String s) { if(event != null) info = s; return this; }
+    // Count a sentence with this many tokens.
+    public Event addSentence(int length) {
+      if(event == null) return this;
+      sentences++;
+      tokens += length;
+      maxLength = Math.max(maxLength, length);
+      return this;
+    }
+    public long numSentences() { return sentences; }
+
+    public void end() {
+      if(event == null) return;
+      try {
+        set.invoke(event, 0, sentences);
+        set.invoke(event, 1, tokens);
+        set.invoke(event, 2, maxLength);
+        set.invoke(event, 3, bytes);
+        set.invoke(event, 4, info);
+        commit.invoke(event);
+      } catch(Exception e) {
+        disable(e);
+      }
+    }
+  }
+
+  private static final Event NONE = new Event(null);
+  private static boolean initialized, enabled;
+  private static final Map<String, Object> factories = new HashMap<String, Object>(); // name -> jdk.jfr.EventFactory
+  private static Constructor<?> newAnnotation, newValue;
+  private static Method createFactory, newEvent, begin, set, commit;
+  private static Class<? extends Annotation> nameType, labelType, categoryType, dataAmountType;
+
+  // Start an event; call end() on it when the phase is over.
+  public static Event begin(String name) {
+    Object event = newEvent(name);
+    if(event == null) return NONE;
+    try {
+      begin.invoke(event);
+    } catch(Exception e) {
+      disable(e);
+      return NONE;
+    }
+    return new Event(event);
+  }
+
+  private synchronized static Object newEvent(String name) {
+    if(!initialized) init();
+    if(!enabled) return null;
+    try {
+      Object factory = factories.get(name);
+      if(factory == null) factories.put(name, factory = createFactory(name));
+      return newEvent.invoke(factory);
+    } catch(Exception e) {
+      disable(e);
+      return null;
+    }
+  }
+
+  private static void init() {
+    initialized = true;
+    if(!Execution.jfrEvents) return;
+    try {
+      Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+      Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      newAnnotation = annotationClass.getConstructor(Class.class, Object.class);
+      newValue = valueClass.getConstructor(Class.class, String.class, List.class);
+      createFactory = factoryClass.getMethod("create", List.class, List.class);
+      newEvent = factoryClass.getMethod("newEvent");
+      begin = eventClass.getMethod("begin");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      commit = eventClass.getMethod("commit");
+      nameType = annotationType("jdk.jfr.Name");
+      labelType = annotationType("jdk.jfr.Label");
+      categoryType = annotationType("jdk.jfr.Category");
+      dataAmountType = annotationType("jdk.jfr.DataAmount");
+      enabled = true;
+    } catch(Exception e) {
+      warning("Flight recorder events are not available: %s", e);
+    }
+  }
+  private static Class<? extends Annotation> annotationType(String name) throws ClassNotFoundException {
+    return Class.forName(name).asSubclass(Annotation.class);
+  }
+
+  private static Object createFactory(String name) throws Exception {
+    List<Object> annotations = new ArrayList<Object>();
+    annotations.add(newAnnotation.newInstance(nameType, name));
+    annotations.add(newAnnotation.newInstance(labelType, name.substring(name.lastIndexOf('.')+1)));
+    annotations.add(newAnnotation.newInstance(categoryType, new String[] { "Aligner" }));
+    List<Object> fields = new ArrayList<Object>();
+    fields.add(newField(long.class, "sentences", "Sentences", null));
+    fields.add(newField(long.class, "tokens", "Tokens", null));
+    fields.add(newField(int.class, "maxLength", "Max Length", null));
+    fields.add(newField(long.class, "bytes", "Bytes", "BYTES"));
+    fields.add(newField(String.class, "info", "Info", null));
+    return createFactory.invoke(null, annotations, fields);
+  }
+  private static Object newField(Class<?> type, String name, String label, String dataAmount) throws Exception {
+    List<Object> annotations = new ArrayList<Object>();
+    annotations.add(newAnnotation.newInstance(labelType, label));
+    if(dataAmount != null) annotations.add(newAnnotation.newInstance(dataAmountType, dataAmount));
+    return newValue.newInstance(type, name, annotations);
+  }
+
+  private synchronized static void disable(Exception e) {
+    if(!enabled) return;
+    enabled = false;
+    warning("Disabling flight recorder events: %s", e);
+  }
+}
@@ -0,0 +1,167 @@
+package fig.exec;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.sun.net.httpserver.*;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Live counters and gauges of an execution, which any thread can update cheaply:
+ *   Metrics.incr("train_sentences_total", 1);
+ *   Metrics.set("train_sentences_left", numLeft);
+ * sample() (called by the MonitorThread) derives from them:
+ *  - X_per_second for each counter X_total, over the last second or so,
+ *  - X_hit_rate from the counters X_hits_total and X_misses_total,
+ *  - X_eta_seconds from the gauge X_left and X_per_second.
+ * With -metricsPort, they are served on localhost in the Prometheus text
+ * format, together with the memory, errors and warnings of the execution.
+ */
+public class Metrics {
+  private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+  private static final Map<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>(); // Bits of doubles
+
+  public static void incr(String name, long n) { getCell(counters, name).addAndGet(n); }
+  public static void set(String name, double x) { getCell(gauges, name).set(Double.doubleToRawLongBits(x)); }
+
+  private static AtomicLong getCell(Map<String, AtomicLong> cells, String name) {
+    AtomicLong cell = cells.get(name);
+    if(cell == null) {
+      synchronized(cells) {
+        cell = cells.get(name);
+        if(cell == null) cells.put(name, cell = new AtomicLong());
+      }
+    }
+    return cell;
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Derived gauges
+
+  private static final long minSampleInterval = 1000000000L; // Nanoseconds
+  private static long lastSampleTime;
+  private static Map<String, Long> lastCounts = new HashMap<String, Long>();
+  private static final Map<String, Double> derived = new TreeMap<String, Double>();
+
+  // Update the derived gauges (at most once per minSampleInterval).
+  public synchronized static void sample() {
+    long now = System.nanoTime();
+    if(lastSampleTime != 0 && now - lastSampleTime < minSampleInterval) return;
+    double seconds = (now - lastSampleTime) / 1e9;
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for(Map.Entry<String, AtomicLong> e : counters.entrySet())
+      counts.put(e.getKey(), e.getValue().get());
+
+    derived.clear();
+    for(Map.Entry<String, Long> e : counts.entrySet()) {
+      String name = e.getKey();
+      if(!name.endsWith("_total")) continue;
+      String base = name.substring(0, name.length() - "_total".length());
+      Long last = lastCounts.get(name);
+      if(lastSampleTime != 0)
+        derived.put(base + "_per_second", (e.getValue() - (last == null ? 0 : last)) / seconds);
+      if(base.endsWith("_hits")) {
+        String cache = base.substring(0, base.length() - "_hits".length());
+        Long misses = counts.get(cache + "_misses_total");
+        long total = e.getValue() + (misses == null ? 0 : misses);
+        if(total > 0) derived.put(cache + "_hit_rate", (double)e.getValue() / total);
+      }
+    }
+    for(String name : gauges.keySet()) {
+      if(!name.endsWith("_left")) continue;
+      String base = name.substring(0, name.length() - "_left".length());
+      Double rate = derived.get(base + "_per_second");
+      if(rate != null && rate > 0)
+        derived.put(base + "_eta_seconds", getGauge(name) / rate);
+    }
+    lastSampleTime = now;
+    lastCounts = counts;
+  }
+
+  private static double getGauge(String name) {
+    return Double.longBitsToDouble(gauges.get(name).get());
+  }
+
+  // Current values, for output.map.
+  public synchronized static OrderedStringMap getStats() {
+    OrderedStringMap map = new OrderedStringMap();
+    for(String name : new TreeSet<String>(counters.keySet())) map.put(name, counters.get(name).get());
+    for(String name : new TreeSet<String>(gauges.keySet())) map.put(name, Fmt.D(getGauge(name)));
+    for(Map.Entry<String, Double> e : derived.entrySet()) map.put(e.getKey(), Fmt.D(e.getValue()));
+    return map;
+  }
+
+  // Everything in the Prometheus text format.
+  public synchronized static String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+    String dir = Execution.getActualExecDir();
+    appendMetric(sb, "exec_info{dir=\"" + (dir == null ? "" : dir.replace("\"", "\\\"")) + "\"}", "gauge", 1);
+    appendMetric(sb, "exec_uptime_seconds", "gauge", ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    Runtime runtime = Runtime.getRuntime();
+    appendMetric(sb, "exec_memory_bytes", "gauge", runtime.totalMemory() - runtime.freeMemory());
+    appendMetric(sb, "exec_errors_total", "counter", LogInfo.getNumErrors());
+    appendMetric(sb, "exec_warnings_total", "counter", LogInfo.getNumWarnings());
+    for(String name : new TreeSet<String>(counters.keySet()))
+      appendMetric(sb, name, "counter", counters.get(name).get());
+    for(String name : new TreeSet<String>(gauges.keySet()))
+      appendMetric(sb, name, "gauge", getGauge(name));
+    for(Map.Entry<String, Double> e : derived.entrySet())
+      appendMetric(sb, e.getKey(), "gauge", e.getValue());
+    return sb.toString();
+  }
+  private static void appendMetric(StringBuilder sb, String name, String type, double value) {
+    int brace = name.indexOf('{');
+    String baseName = brace == -1 ? name : name.substring(0, brace);
+    sb.append("# TYPE ").append(baseName).append(' ').append(type).append('\n');
+    sb.append(name).append(' ');
+    if(value == (long)value) sb.append((long)value);
+    else sb.append(value);
+    sb.append('\n');
+  }
+
+  ////////////////////////////////////////////////////////////
+  // HTTP endpoint
+
+  private static HttpServer server;
+
+  // Serve /metrics on localhost:port.
+  static void startServer(int port) {
+    try {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+    } catch(IOException e) {
+      warning("Can't serve metrics on port %d: %s", port, e);
+      return;
+    }
+    server.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        sample();
+        byte[] body = toPrometheus().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "metrics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }));
+    server.start();
+    logs("Serving metrics at http://127.0.0.1:%d/metrics", port);
+  }
+
+  static void stopServer() {
+    if(server == null) return;
+    server.stop(0);
+    server = null;
+  }
+}
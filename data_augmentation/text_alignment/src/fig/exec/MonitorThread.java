@@ -26,7 +26,7 @@ class MonitorThread implements Runnable {
     if(cmd.equals("")) {
       Execution.getInfo().print(stderr);
       Execution.printOutputMapToStderr();
-      StopWatch.getStats().print(stderr);
+      Execution.getTimes().print(stderr);
       stderr.println(Execution.getActualExecDir());
     }
     else {
@@ -66,6 +66,10 @@ class MonitorThread implements Runnable {
         Execution.putOutput("exec.time", LogInfo.getWatch().stop().toString());
         Execution.putOutput("exec.errors", "" + LogInfo.getNumErrors());
         Execution.putOutput("exec.warnings", "" + LogInfo.getNumWarnings());
+        Metrics.sample();
+        OrderedStringMap metrics = Metrics.getStats();
+        for(String key : metrics.keys())
+          Execution.putOutput("metrics." + key, metrics.get(key));
         Execution.setExecStatus("running", false);
         Execution.printOutputMap(Execution.getFile("output.map"));
 
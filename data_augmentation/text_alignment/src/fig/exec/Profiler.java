@@ -0,0 +1,122 @@
+package fig.exec;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import fig.basic.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * With -profile, writes profile.json at the end of the execution: the
+ * wall time, bytes allocated, GC count and time and peak heap of the
+ * whole run, and the time and bytes allocated in each Timers phase.
+ * It's a flat JSON object of numbers, e.g.
+ *   "wallSeconds": 12.5,
+ *   "phase.E-step.seconds": 3.2,
+ * so that reports are easy to combine and compare (see cross.ProfileReport).
+ *
+ * The bytes allocated by the run are those of the threads still alive at
+ * the end (threads which have finished, e.g. parallel E-step workers,
+ * are only counted in their phases); the peak heap is that of the whole
+ * run, even if something (e.g. cross.Convergence) resets the peak on the way.
+ */
+public class Profiler {
+  private static long startTime;
+  private static long startGcCount, startGcTime;
+
+  static void start() {
+    startTime = System.nanoTime();
+    if(!Timers.trackAllocation())
+      warning("This JVM can't measure allocation; the allocatedBytes will be 0");
+    SysInfoUtils.getMaxPeakHeapMemory(); // Start tracking the peak
+    startGcCount = gcCount();
+    startGcTime = gcTime();
+  }
+
+  private static long gcCount() {
+    long n = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(gc.getCollectionCount(), 0);
+    return n;
+  }
+  private static long gcTime() { // Milliseconds
+    long t = 0;
+    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      t += Math.max(gc.getCollectionTime(), 0);
+    return t;
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+    long bytes = 0;
+    for(long b : ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(bean.getAllThreadIds()))
+      bytes += Math.max(b, 0);
+    return bytes;
+  }
+
+  public static OrderedMap<String, Double> getProfile() {
+    OrderedMap<String, Double> profile = new OrderedMap<String, Double>();
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    long allocated = allocatedBytes();
+    profile.put("wallSeconds", seconds);
+    profile.put("allocatedBytes", (double)allocated);
+    profile.put("allocationBytesPerSecond", allocated / seconds);
+    profile.put("gcCount", (double)(gcCount() - startGcCount));
+    profile.put("gcSeconds", (gcTime() - startGcTime) / 1e3);
+    profile.put("peakHeapBytes", (double)SysInfoUtils.getMaxPeakHeapMemory());
+
+    OrderedMap<String, Timers.Histogram> hists = Timers.getHistograms();
+    for(String name : hists.keys()) {
+      if(name.contains(" [len ")) continue; // Just the phases
+      Timers.Histogram h = hists.get(name);
+      double phaseSeconds = h.total() / 1e9;
+      profile.put("phase." + name + ".count", (double)h.count());
+      profile.put("phase." + name + ".seconds", phaseSeconds);
+      profile.put("phase." + name + ".allocatedBytes", (double)h.allocated());
+      profile.put("phase." + name + ".allocationBytesPerSecond", phaseSeconds == 0 ? 0 : h.allocated() / phaseSeconds);
+    }
+    return profile;
+  }
+
+  static boolean write(String path) {
+    if(path == null) return false;
+    return writeJson(getProfile(), path);
+  }
+
+  // Write a flat JSON object of numbers.
+  public static boolean writeJson(OrderedMap<String, Double> map, String path) {
+    PrintWriter out = IOUtils.openOutEasy(path);
+    if(out == null) return false;
+    out.println("{");
+    int k = 0;
+    for(String key : map.keys()) {
+      double x = map.get(key);
+      out.printf("  \"%s\": %s%s\n", key.replace("\\", "\\\\").replace("\"", "\\\""),
+          x == (long)x ? ""+(long)x : ""+x, ++k < map.size() ? "," : "");
+    }
+    out.println("}");
+    out.close();
+    return true;
+  }
+
+  // Read what writeJson wrote.
+  public static OrderedMap<String, Double> readJson(String path) throws IOException {
+    OrderedMap<String, Double> map = new OrderedMap<String, Double>();
+    BufferedReader in = IOUtils.openIn(path);
+    String line;
+    while((line = in.readLine()) != null) {
+      line = line.trim();
+      if(!line.startsWith("\"")) continue;
+      int colon = line.lastIndexOf("\":");
+      if(colon == -1) continue;
+      String key = line.substring(1, colon).replace("\\\"", "\"").replace("\\\\", "\\");
+      String value = line.substring(colon+2).trim();
+      if(value.endsWith(",")) value = value.substring(0, value.length()-1);
+      map.put(key, Double.parseDouble(value));
+    }
+    in.close();
+    return map;
+  }
+}
@@ -22,22 +22,41 @@ import java.util.*;
  * consists of a key and optionally a value, and a list of children nodes.
  * In the file, each line specifies a node:
  * <\t * D, where D is depth of node><key>\t<value>
+ * With init(path, true), the same tree is written in a compact binary
+ * format instead (see RecordWriter), which RecordReader converts back.
  */
 public class Record {
   public static void init(String path) {
     out = IOUtils.openOutEasy(path);
   }
+  public static void init(String path, boolean binary) {
+    if(!binary) { init(path); return; }
+    if(StrUtils.isEmpty(path)) return;
+    try {
+      writer = new RecordWriter(path);
+    } catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
   public static void finish() {
     if(out != null) out.close();
+    if(writer != null) writer.close();
   }
   public static void flush() {
     if(out != null) out.flush();
+    if(writer != null) writer.flush();
   }
 
-  private static void print(Object o) {
+  private static void print(String key, Object[] values) {
+    if(writer != null) { writer.node(key, values); return; }
     if(out == null) return;
     for(int i = 0; i < indent; i++) out.print('\t');
-    out.println(o+"");
+    out.print(key);
+    for(Object o : values) {
+      out.print('\t');
+      out.print(o+"");
+    }
+    out.println();
   }
 
   public static void setStruct(Object... keys) {
@@ -51,18 +70,13 @@ public class Record {
   }
 
   public static void addArray(String key, Object[] values) {
-    StringBuilder buf = new StringBuilder();
-    buf.append(".array\t");
-    buf.append(key);
-    for(Object value : values) { buf.append('\t'); buf.append(value); }
-    print(buf.toString());
+    addArray(key, Arrays.asList(values));
   }
   public static void addArray(String key, List values) {
-    StringBuilder buf = new StringBuilder();
-    buf.append(".array\t");
-    buf.append(key);
-    for(Object value : values) { buf.append('\t'); buf.append(value); }
-    print(buf.toString());
+    Object[] fields = new Object[values.size()+1];
+    fields[0] = key;
+    for(int i = 0; i < values.size(); i++) fields[i+1] = values.get(i);
+    print(".array", fields);
   }
 
   public static void addObject(Object o, Object arg) {
@@ -102,21 +116,23 @@ public class Record {
     begin(key, val); addObject(o, arg); end();
   }
 
-  public static void begin(String key) { add(key); indent++; }
-  public static void begin(String key, Object val) { add(key, val); indent++; }
-  public static void end() { indent--; }
+  public static void begin(String key) { add(key); down(); }
+  public static void begin(String key, Object val) { add(key, val); down(); }
+  public static void end() {
+    indent--;
+    if(writer != null) writer.end();
+  }
+  private static void down() {
+    indent++;
+    if(writer != null) writer.begin();
+  }
 
   // Add a as the key, b as the list of things
   private static void addTabSepValues(String a, Object[] b) {
-    StringBuilder buf = new StringBuilder();
-    buf.append(a);
-    for(Object o : b) {
-      buf.append('\t');
-      buf.append(o);
-    }
-    print(buf.toString());
+    print(a, b);
   }
 
   private static int indent;
   private static PrintWriter out;
+  private static RecordWriter writer;
 }
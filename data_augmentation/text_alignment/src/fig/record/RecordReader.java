@@ -0,0 +1,175 @@
+package fig.record;
+
+import java.io.*;
+import java.util.*;
+
+import fig.basic.*;
+import fig.exec.*;
+import static fig.basic.LogInfo.*;
+
+/**
+ * Reads a binary record file (see RecordWriter) one event at a time:
+ *   RecordReader reader = new RecordReader(path);
+ *   while(reader.next())
+ *     if(reader.isNode()) ... reader.getDepth(), reader.getFields() ...
+ * Run as a program, it converts binary record files to the text layout
+ * that Record writes, or to CSV with one row per node:
+ *   file,path,key,value_1,...,value_n
+ * where path is the key=value of each ancestor, joined by '/'
+ * (e.g., train/iteration=3), so that the records of many runs can be
+ * loaded into one table.
+ */
+public class RecordReader {
+  public enum Format { TEXT, CSV };
+
+  @Option(gloss="Binary record files", required=true)
+    public static ArrayList<String> inFiles = new ArrayList<String>();
+  @Option(gloss="File to write to", required=true)
+    public static String outFile;
+  @Option(gloss="What to convert to")
+    public static Format format = Format.TEXT;
+
+  private final DataInputStream in;
+  private final List<String> strings = new ArrayList<String>();
+  private int depth, event = -1;
+  private String[] fields;
+
+  public RecordReader(String path) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+  }
+
+  // Read the next node or change of depth; return false at the end of the file.
+  public boolean next() throws IOException {
+    if(event == RecordWriter.BEGIN) depth++;
+    while(true) {
+      int b = in.read();
+      if(b == -1) { event = -1; return false; }
+      event = (int)readVarint(b);
+      switch(event) {
+        case RecordWriter.HEADER:
+          int version = (int)readVarint(in.readUnsignedByte());
+          if(version != RecordWriter.VERSION)
+            throw new IOException("Unknown record version: " + version);
+          strings.clear();
+          depth = 0;
+          break;
+        case RecordWriter.STRING:
+          strings.add(readString());
+          break;
+        case RecordWriter.NODE:
+          fields = new String[(int)readVarint()];
+          for(int i = 0; i < fields.length; i++) fields[i] = readField();
+          return true;
+        case RecordWriter.BEGIN:
+          return true;
+        case RecordWriter.END:
+          depth--;
+          return true;
+        default:
+          throw new IOException("Bad record event: " + event);
+      }
+    }
+  }
+
+  public boolean isNode() { return event == RecordWriter.NODE; }
+  public boolean isBegin() { return event == RecordWriter.BEGIN; }
+  public boolean isEnd() { return event == RecordWriter.END; }
+  // Depth of the current node (the root nodes are at 0).
+  public int getDepth() { return depth; }
+  // Key and values of the current node.
+  public String[] getFields() { return fields; }
+
+  public void close() throws IOException { in.close(); }
+
+  private String readField() throws IOException {
+    long k = readVarint();
+    if(k % 4 == 0) {
+      if(k/4 >= strings.size()) throw new IOException("Bad string number: " + k/4);
+      return strings.get((int)(k/4));
+    }
+    if(k == RecordWriter.FIELD_INLINE) return readString();
+    if(k == RecordWriter.FIELD_INT) {
+      long x = readVarint();
+      return ""+((x >>> 1) ^ -(x & 1));
+    }
+    if(k == RecordWriter.FIELD_DOUBLE) {
+      long x = 0;
+      for(int i = 0; i < 8; i++) x |= (long)in.readUnsignedByte() << (8*i);
+      return ""+Double.longBitsToDouble(x);
+    }
+    throw new IOException("Bad record field: " + k);
+  }
+
+  private String readString() throws IOException {
+    byte[] bytes = new byte[(int)readVarint()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private long readVarint() throws IOException { return readVarint(in.readUnsignedByte()); }
+  private long readVarint(int b) throws IOException {
+    long x = 0;
+    for(int shift = 0; ; shift += 7) {
+      x |= (long)(b & 0x7f) << shift;
+      if((b & 0x80) == 0) return x;
+      b = in.readUnsignedByte();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////
+  // Conversion
+
+  // Write the nodes of the file in the layout of Record.
+  public static void toText(String path, PrintWriter out) throws IOException {
+    RecordReader reader = new RecordReader(path);
+    while(reader.next()) {
+      if(!reader.isNode()) continue;
+      for(int i = 0; i < reader.getDepth(); i++) out.print('\t');
+      out.println(StrUtils.join(reader.getFields(), "\t"));
+    }
+    reader.close();
+  }
+
+  // Write a row for each node of the file.
+  public static void toCSV(String path, PrintWriter out) throws IOException {
+    RecordReader reader = new RecordReader(path);
+    List<String> ancestors = new ArrayList<String>();
+    String last = null; // Node that BEGIN goes into
+    while(reader.next()) {
+      if(reader.isBegin()) ancestors.add(last);
+      else if(reader.isEnd()) ancestors.remove(ancestors.size()-1);
+      else {
+        String[] fields = reader.getFields();
+        last = fields.length > 1 ? fields[0] + "=" + fields[1] : fields[0];
+        StringBuilder row = new StringBuilder(csvQuote(path));
+        row.append(',').append(csvQuote(StrUtils.join(ancestors, "/")));
+        for(String field : fields) row.append(',').append(csvQuote(field));
+        out.println(row);
+      }
+    }
+    reader.close();
+  }
+
+  private static String csvQuote(String s) {
+    if(s.indexOf(',') == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1) return s;
+    return '"' + s.replace("\"", "\"\"") + '"';
+  }
+
+  public static void main(String[] args) {
+    OptionsParser.register("main", RecordReader.class);
+    Execution.init(args);
+    try {
+      PrintWriter out = IOUtils.openOut(outFile);
+      if(format == Format.CSV) out.println("file,path,key,values");
+      for(String inFile : inFiles) {
+        logs("Converting %s", inFile);
+        if(format == Format.TEXT) toText(inFile, out);
+        else toCSV(inFile, out);
+      }
+      out.close();
+    } catch(Throwable t) {
+      Execution.raiseException(t);
+    }
+    Execution.finish();
+  }
+}
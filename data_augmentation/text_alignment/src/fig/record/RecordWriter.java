@@ -0,0 +1,197 @@
+package fig.record;
+
+import java.io.*;
+import java.util.*;
+
+import static fig.basic.LogInfo.*;
+
+/**
+ * Writes the record tree in a compact binary format instead of text.
+ * The file is a sequence of events, each starting with a varint tag:
+ *   HEADER version   start of a file (resets the string table and depth,
+ *                    so files can be concatenated)
+ *   STRING s         define the next string in the string table
+ *   NODE n f_1..f_n  a node (key and values) at the current depth
+ *   BEGIN, END       go down/up a level
+ * A field f is a varint k followed by:
+ *   k = 4*id        (nothing) string number id of the string table
+ *   k = 1           length and UTF-8 bytes of a string not in the table
+ *   k = 2           zigzag varint of an integer
+ *   k = 3           the 8 bytes of a double
+ * Keys and short non-numeric values go in the string table, so they're
+ * written once.  Converting back (RecordReader) gives exactly the text
+ * that Record would have written.
+ *
+ * Events are encoded into a buffer in memory, which a background thread
+ * writes out every flushInterval milliseconds (or once it gets big), so
+ * the callers never wait for the disk.
+ */
+public class RecordWriter {
+  static final int HEADER = 0, STRING = 1, NODE = 2, BEGIN = 3, END = 4;
+  static final int FIELD_INLINE = 1, FIELD_INT = 2, FIELD_DOUBLE = 3;
+  static final int VERSION = 1;
+  static final int maxStrings = 1<<16, maxInternLength = 64;
+
+  private static final int flushInterval = 1000; // Milliseconds
+  private static final int flushSize = 1<<16; // Bytes
+
+  private final OutputStream out;
+  private Buffer buf = new Buffer(), spare = new Buffer();
+  private final Map<String, Integer> strings = new HashMap<String, Integer>();
+  private boolean closed;
+  private IOException failure;
+  private final Thread flusher;
+
+  public RecordWriter(String path) throws IOException {
+    this.out = new FileOutputStream(path, true);
+    writeVarint(HEADER);
+    writeVarint(VERSION);
+    flusher = new Thread(new Runnable() {
+      public void run() {
+        while(flushBuffer(true));
+      }
+    }, "record-writer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  public synchronized void node(String key, Object[] values) {
+    if(closed) return;
+    // Strings first, since their definitions have to come before the node
+    int[] ids = new int[values.length+1];
+    ids[0] = intern(key);
+    for(int i = 0; i < values.length; i++)
+      ids[i+1] = isNumber(values[i]) ? -1 : intern(values[i]+"");
+    writeVarint(NODE);
+    writeVarint(values.length+1);
+    writeField(key, ids[0]);
+    for(int i = 0; i < values.length; i++)
+      writeField(values[i], ids[i+1]);
+    if(buf.size >= flushSize) notifyAll();
+  }
+  public synchronized void begin() { if(!closed) writeVarint(BEGIN); }
+  public synchronized void end() { if(!closed) writeVarint(END); }
+
+  // Write out everything so far (from this thread).
+  public void flush() {
+    synchronized(this) { notifyAll(); }
+    flushBuffer(false);
+  }
+
+  public void close() {
+    synchronized(this) {
+      if(closed) return;
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flushBuffer(false);
+    try {
+      out.close();
+    } catch(IOException e) {
+      if(failure == null) failure = e;
+    }
+    if(failure != null) warning("Failed to write record: %s", failure);
+  }
+
+  // Write out the buffer; if wait, first wait until it's time to.
+  // Return whether the background thread should keep going.
+  private boolean flushBuffer(boolean wait) {
+    if(wait) {
+      synchronized(this) {
+        if(!closed && buf.size < flushSize) {
+          try {
+            wait(flushInterval);
+          } catch(InterruptedException e) {
+            return false;
+          }
+        }
+      }
+    }
+    // Swap the buffers while holding out, so that they're written in order
+    synchronized(out) {
+      Buffer full;
+      synchronized(this) {
+        full = buf;
+        buf = spare != null ? spare : new Buffer();
+        spare = null;
+      }
+      try {
+        if(full.size > 0 && failure == null) out.write(full.bytes, 0, full.size);
+        if(!wait && failure == null) out.flush();
+      } catch(IOException e) {
+        failure = e;
+      }
+      full.size = 0;
+      synchronized(this) { spare = full; }
+    }
+    synchronized(this) { return !closed; }
+  }
+
+  private static boolean isNumber(Object o) {
+    return o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte || o instanceof Double;
+  }
+
+  // Return the string's number, or -2 if it shouldn't go in the table.
+  private int intern(String s) {
+    Integer id = strings.get(s);
+    if(id != null) return id;
+    if(s.length() > maxInternLength || strings.size() >= maxStrings) return -2;
+    strings.put(s, id = strings.size());
+    writeVarint(STRING);
+    writeString(s);
+    return id;
+  }
+
+  private void writeField(Object o, int id) {
+    if(id >= 0) {
+      writeVarint(4*id);
+    }
+    else if(o instanceof Double) {
+      writeVarint(FIELD_DOUBLE);
+      long x = Double.doubleToRawLongBits((Double)o);
+      for(int i = 0; i < 8; i++) buf.add((byte)(x >>> (8*i)));
+    }
+    else if(id == -1) {
+      writeVarint(FIELD_INT);
+      long x = ((Number)o).longValue();
+      writeVarint((x << 1) ^ (x >> 63));
+    }
+    else {
+      writeVarint(FIELD_INLINE);
+      writeString(o+"");
+    }
+  }
+
+  private void writeString(String s) {
+    byte[] bytes;
+    try {
+      bytes = s.getBytes("UTF-8");
+    } catch(UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    writeVarint(bytes.length);
+    for(byte b : bytes) buf.add(b);
+  }
+
+  private void writeVarint(long x) {
+    while((x & ~0x7fL) != 0) {
+      buf.add((byte)((x & 0x7f) | 0x80));
+      x >>>= 7;
+    }
+    buf.add((byte)x);
+  }
+
+  private static class Buffer {
+    byte[] bytes = new byte[1024];
+    int size;
+    void add(byte b) {
+      if(size == bytes.length) bytes = Arrays.copyOf(bytes, 2*size);
+      bytes[size++] = b;
+    }
+  }
+}